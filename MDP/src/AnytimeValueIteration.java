@@ -0,0 +1,160 @@
+/**
+ * This class runs value iteration under a budget, for callers that
+ * must have a policy by a deadline.  Unlike <tt>ValueIteration</tt>,
+ * the constructor does no work; each call of <tt>solve</tt> runs
+ * Jacobi sweeps until the utilities reach a target accuracy or a
+ * budget of time or sweeps runs out, and the next call carries on
+ * where the last one stopped, even in the middle of a sweep.
+ *
+ * <p>Between calls, <tt>policy</tt> and <tt>utility</tt> hold the
+ * results of the last complete sweep, together with bounds that
+ * certify them.  If a sweep computes <tt>U' = TU</tt> and the largest
+ * change <tt>|U'-U|</tt> is <tt>r</tt>, then the policy that is greedy
+ * for <tt>U</tt> (the one chosen by that sweep) loses at most
+ * <tt>2*discount*r/(1-discount)</tt> against the optimal policy in any
+ * state, and <tt>U'</tt> is within <tt>discount*r/(1-discount)</tt> of
+ * the optimal utility.
+ */
+public class AnytimeValueIteration {
+
+    /** the greedy policy found by the last complete sweep (all zeros
+     * before the first one) **/
+    public int policy[];
+
+    /** the utility computed by the last complete sweep **/
+    public double utility[];
+
+    /** the number of complete sweeps performed over all calls of
+     * <tt>solve</tt> **/
+    public int iterations;
+
+    /** the largest change in utility during the last complete sweep,
+     * or infinity before the first one **/
+    public double bellmanResidual = Double.POSITIVE_INFINITY;
+
+    /** an upper bound on how much less than optimal the utility of
+     * <tt>policy</tt> is in any state:
+     * <tt>2*discount*bellmanResidual/(1-discount)</tt> **/
+    public double policyLossBound = Double.POSITIVE_INFINITY;
+
+    /** an upper bound on the largest difference between
+     * <tt>utility</tt> and the optimal utility:
+     * <tt>discount*bellmanResidual/(1-discount)</tt> **/
+    public double utilityErrorBound = Double.POSITIVE_INFINITY;
+
+    /** the number of states backed up between checks of the clock **/
+    private static final int CLOCK_INTERVAL = 1024;
+
+    private Mdp mdp;
+    private double discount;
+    private BellmanKernel kernel;
+
+    /** the sweep in progress: its utilities and policy, the next
+     * state to back up, and the largest change so far **/
+    private double nextUtility[];
+    private int nextPolicy[];
+    private int position;
+    private double maxDifference;
+
+    /**
+     * Prepares to solve the given <tt>mdp</tt> with the given
+     * <tt>discount</tt> factor, starting from zero utilities.
+     */
+    public AnytimeValueIteration(Mdp mdp, double discount) {
+	this(mdp, discount, null);
+    }
+
+    /**
+     * Prepares to solve the given <tt>mdp</tt>, starting from the
+     * given utilities (which are not modified), for instance those of
+     * an earlier solve of a similar problem.  Good starting utilities
+     * make the first sweeps count for more.  If
+     * <tt>initialUtility</tt> is null, the solve starts from zero.
+     */
+    public AnytimeValueIteration(Mdp mdp, double discount,
+				 double initialUtility[]) {
+	if (discount <= 0 || discount >= 1)
+	    throw new IllegalArgumentException("discount must be between 0 and 1, not " + discount);
+	this.mdp = mdp;
+	this.discount = discount;
+	this.kernel = new BellmanKernel(mdp.transitions());
+	this.utility = (initialUtility == null ? new double[mdp.numStates]
+			: initialUtility.clone());
+	if (this.utility.length != mdp.numStates)
+	    throw new IllegalArgumentException("initial utility has " + this.utility.length
+					       + " states, expected " + mdp.numStates);
+	this.policy = new int[mdp.numStates];
+	this.nextUtility = new double[mdp.numStates];
+	this.nextPolicy = new int[mdp.numStates];
+    }
+
+    /**
+     * Runs sweeps until the largest change in a sweep is at most
+     * <tt>epsilon</tt>, or until <tt>maxNanos</tt> nanoseconds have
+     * passed, or until <tt>maxSweeps</tt> sweeps have been completed
+     * by this call, whichever comes first.  A budget of 0 or less
+     * means no limit of that kind, and an <tt>epsilon</tt> of 0 or
+     * less selects the tolerance of <tt>ValueIteration</tt>.  The
+     * clock is checked every few thousand backups, so the time budget
+     * may be overrun by about that much work.
+     *
+     * <p>Returns true once the target has been reached; otherwise the
+     * fields hold the results of the last complete sweep, and another
+     * call continues the work.
+     */
+    public boolean solve(long maxNanos, int maxSweeps, double epsilon) {
+	if (epsilon <= 0)
+	    epsilon = Math.pow(10, -13) * (1 - discount) / discount;
+	if (bellmanResidual <= epsilon)
+	    return true;
+	long deadline = System.nanoTime() + maxNanos;
+	int numStates = mdp.numStates, sweeps = 0;
+	while (true) {
+	    // back up the rest of the current sweep, a chunk at a time
+	    while (position < numStates) {
+		int end = Math.min(numStates, position + CLOCK_INTERVAL);
+		for (int s = position; s < end; s++) {
+		    nextUtility[s] = mdp.reward[s]
+			+ discount * kernel.backup(s, utility, nextPolicy);
+		    double difference = Math.abs(nextUtility[s] - utility[s]);
+		    if (difference > maxDifference)
+			maxDifference = difference;
+		}
+		position = end;
+		if (maxNanos > 0 && position < numStates
+		    && System.nanoTime() - deadline >= 0)
+		    return false;
+	    }
+
+	    // the sweep is complete: publish it
+	    double swap[] = utility;
+	    utility = nextUtility;
+	    nextUtility = swap;
+	    int swapPolicy[] = policy;
+	    policy = nextPolicy;
+	    nextPolicy = swapPolicy;
+	    iterations++;
+	    sweeps++;
+	    bellmanResidual = maxDifference;
+	    policyLossBound = 2 * discount * maxDifference / (1 - discount);
+	    utilityErrorBound = discount * maxDifference / (1 - discount);
+	    position = 0;
+	    maxDifference = 0;
+
+	    if (bellmanResidual <= epsilon)
+		return true;
+	    if ((maxSweeps > 0 && sweeps >= maxSweeps)
+		|| (maxNanos > 0 && System.nanoTime() - deadline >= 0))
+		return false;
+	}
+    }
+
+    /**
+     * Runs sweeps until the greedy policy is certified to lose at
+     * most <tt>maxLoss</tt> in any state, or until the budget runs out,
+     * as <tt>solve</tt> does.
+     */
+    public boolean solveForLoss(long maxNanos, int maxSweeps, double maxLoss) {
+	return solve(maxNanos, maxSweeps, maxLoss * (1 - discount) / (2 * discount));
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * This class runs value iteration on one MDP for many discount
+ * factors at once.  Solving for each discount separately reads every
+ * transition once per sweep per discount; here a sweep reads each
+ * transition once and applies it to all of the discounts still being
+ * solved.  To make that cheap, the utilities of the different
+ * discounts are interleaved, so that the utilities of a target state
+ * for all of the discounts sit next to each other in memory.
+ *
+ * <p>This pays off when reading the transitions is the main cost of a
+ * sweep, as when states have many transitions to nearby states; the
+ * interleaved utilities take as much memory as all of the discounts'
+ * utilities together, so when the targets are scattered over a large
+ * MDP, fetching them can cost more than the transitions saved.
+ *
+ * <p>Each discount is swept (with Jacobi sweeps) until its own
+ * utilities converge, with the threshold <tt>ValueIteration</tt> uses
+ * for that discount, and then drops out of the remaining sweeps.  As
+ * in <tt>ValueIteration</tt>, the utilities returned are those the
+ * converging sweep started from, for which the returned policy is
+ * greedy, so the results match those of separate
+ * <tt>ValueIteration</tt> runs up to the rounding of the sums.
+ */
+public class BatchValueIteration {
+
+    /** the discount factors solved for, as given **/
+    public double discount[];
+
+    /** <tt>policy[d]</tt> is the optimal policy for
+     * <tt>discount[d]</tt> **/
+    public int policy[][];
+
+    /** <tt>utility[d]</tt> is the optimal utility for
+     * <tt>discount[d]</tt> **/
+    public double utility[][];
+
+    /** <tt>iterations[d]</tt> is the number of sweeps taken for
+     * <tt>discount[d]</tt> **/
+    public int iterations[];
+
+    /** the number of sweeps over the transitions, which is the
+     * largest of the <tt>iterations</tt> **/
+    public int sweeps;
+
+    /** the transitions and rewards of the MDP being solved **/
+    private int rowOffset[], target[];
+    private double prob[], reward[];
+    private int numActions;
+
+    /** the discounts still being solved, in their interleaved order,
+     * and scratch space for the backups of one state **/
+    private double gamma[], q[], best[];
+    private int bestAction[];
+
+    /**
+     * Computes the optimal policy and utility of the given
+     * <tt>mdp</tt> for each of the given <tt>discounts</tt>.  The
+     * sweeps read the arrays of a <tt>CsrTransitionStore</tt>
+     * directly; transitions held in another kind of store are first
+     * copied into one.  The interleaved utilities of all of the
+     * discounts must fit in one array, of at most
+     * <tt>Integer.MAX_VALUE</tt> entries.
+     */
+    public BatchValueIteration(Mdp mdp, double discounts[]) {
+	TransitionStore t = mdp.transitions();
+	CsrTransitionStore csr = (t instanceof CsrTransitionStore
+				  ? (CsrTransitionStore) t : new CsrTransitionStore(t));
+	this.rowOffset = csr.rowOffset;
+	this.target = csr.target;
+	this.prob = csr.prob;
+	this.reward = mdp.reward;
+	this.numActions = mdp.numActions;
+	int numStates = mdp.numStates;
+	int numDiscounts = discounts.length;
+	discount = discounts.clone();
+	policy = new int[numDiscounts][numStates];
+	utility = new double[numDiscounts][];
+	iterations = new int[numDiscounts];
+	if ((long) numStates * numDiscounts > Integer.MAX_VALUE)
+	    throw new IllegalArgumentException("the interleaved utilities of " + numStates
+					       + " states for " + numDiscounts
+					       + " discounts do not fit in an array");
+	for (int d = 0; d < numDiscounts; d++)
+	    if (!(discount[d] > 0 && discount[d] < 1))
+		throw new IllegalArgumentException("discount must be between 0 and 1, not "
+						   + discount[d]);
+
+	// the discounts still being solved: active[i] is the index in
+	// discount[] of the i-th of the width interleaved ones
+	int width = numDiscounts;
+	int active[] = new int[width];
+	double delta[] = new double[width];
+	gamma = new double[width];
+	for (int i = 0; i < width; i++) {
+	    active[i] = i;
+	    gamma[i] = discount[i];
+	    delta[i] = Math.pow(10, -13) * (1 - gamma[i]) / gamma[i];
+	}
+	double current[] = new double[numStates * width];
+	double next[] = new double[numStates * width];
+	double maxDifference[] = new double[width];
+	this.q = new double[width];
+	this.best = new double[width];
+	this.bestAction = new int[width];
+
+	while (width > 0) {
+	    java.util.Arrays.fill(maxDifference, 0, width, 0.0);
+	    for (int s = 0; s < numStates; s++)
+		backup(s, width, current, next, maxDifference, active);
+	    double swap[] = current;
+	    current = next;
+	    next = swap;
+	    sweeps++;
+
+	    // retire the discounts that have converged, and repack the
+	    // utilities of the others
+	    int remaining = 0;
+	    for (int i = 0; i < width; i++) {
+		iterations[active[i]]++;
+		if (delta[i] > maxDifference[i]) {
+		    // like ValueIteration, keep the utilities the converging
+		    // sweep started from, for which the policy is greedy
+		    double u[] = new double[numStates];
+		    for (int s = 0; s < numStates; s++)
+			u[s] = next[s * width + i];
+		    utility[active[i]] = u;
+		} else
+		    remaining++;
+	    }
+	    if (remaining < width) {
+		int keep[] = new int[remaining];
+		int n = 0;
+		for (int i = 0; i < width; i++)
+		    if (delta[i] <= maxDifference[i])
+			keep[n++] = i;
+		double packed[] = new double[numStates * remaining];
+		for (int s = 0; s < numStates; s++)
+		    for (int j = 0; j < remaining; j++)
+			packed[s * remaining + j] = current[s * width + keep[j]];
+		for (int j = 0; j < remaining; j++) {
+		    active[j] = active[keep[j]];
+		    gamma[j] = gamma[keep[j]];
+		    delta[j] = delta[keep[j]];
+		}
+		width = remaining;
+		current = packed;
+		next = new double[numStates * width];
+	    }
+	}
+    }
+
+    /**
+     * Backs up state <tt>s</tt> for the first <tt>width</tt>
+     * discounts, from the interleaved utilities <tt>current</tt> into
+     * <tt>next</tt>, raising their entries of <tt>maxDifference</tt>
+     * by the changes and recording the best actions.
+     */
+    private void backup(int s, int width, double current[], double next[],
+			double maxDifference[], int active[]) {
+	for (int i = 0; i < width; i++) {
+	    best[i] = Double.NEGATIVE_INFINITY;
+	    bestAction[i] = 0;
+	}
+	for (int a = 0; a < numActions; a++) {
+	    int start = rowOffset[s * numActions + a];
+	    int end = rowOffset[s * numActions + a + 1];
+	    // sum the row for four discounts at a time, in registers,
+	    // and then for the rest one at a time
+	    int i = 0;
+	    for (; i + 4 <= width; i += 4) {
+		double q0 = 0, q1 = 0, q2 = 0, q3 = 0;
+		for (int k = start; k < end; k++) {
+		    double p = prob[k];
+		    int base = target[k] * width + i;
+		    q0 += p * current[base];
+		    q1 += p * current[base + 1];
+		    q2 += p * current[base + 2];
+		    q3 += p * current[base + 3];
+		}
+		q[i] = q0;
+		q[i + 1] = q1;
+		q[i + 2] = q2;
+		q[i + 3] = q3;
+	    }
+	    for (; i < width; i++) {
+		double q0 = 0;
+		for (int k = start; k < end; k++)
+		    q0 += prob[k] * current[target[k] * width + i];
+		q[i] = q0;
+	    }
+	    for (i = 0; i < width; i++)
+		if (q[i] > best[i]) {
+		    best[i] = q[i];
+		    bestAction[i] = a;
+		}
+	}
+	int base = s * width;
+	for (int i = 0; i < width; i++) {
+	    double u = reward[s] + gamma[i] * best[i];
+	    double difference = Math.abs(u - current[base + i]);
+	    if (difference > maxDifference[i])
+		maxDifference[i] = difference;
+	    next[base + i] = u;
+	    policy[active[i]][s] = bestAction[i];
+	}
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * This class computes Bellman backups: for a state <tt>s</tt> and a
+ * utility vector <tt>U</tt>, the largest expected utility
+ * <tt>sum_i P(s,a,i) U(i)</tt> over all actions <tt>a</tt>, and the
+ * first action attaining it.  When the transitions are a
+ * <tt>CsrTransitionStore</tt>, the rows of all of the actions of a
+ * state are adjacent, and the kernel walks them as one contiguous
+ * stretch of the target and probability arrays, summing each row with
+ * four independent accumulators so that consecutive multiply-adds do
+ * not wait on one another.  The same holds for a
+ * <tt>PatchedTransitionStore</tt> over a <tt>CsrTransitionStore</tt>,
+ * except for the states whose rows it replaces, so editing a few rows
+ * of an MDP does not slow down its solvers.  Other stores are read
+ * through the
+ * <tt>TransitionStore</tt> interface, with the transitions of each row
+ * assigned to the four accumulators in the same way, so that a model
+ * gives the same results to the last bit however it is stored.
+ *
+ * <p>A kernel has no mutable state, so one kernel can be shared by
+ * any number of threads.  The sums are rounded in a fixed order, so a
+ * kernel always returns the same result for the same input.
+ */
+public class BellmanKernel {
+
+    private final TransitionStore transitions;
+    private final int numActions;
+    private final int rowOffset[];
+    private final int target[];
+    private final double prob[];
+
+    /** for a store patching the CSR arrays above, marks the states
+     * with a replaced row, which are read through the store; else
+     * null **/
+    private final boolean patchedState[];
+
+    /** Creates a kernel for the given transitions. */
+    public BellmanKernel(TransitionStore transitions) {
+	this.transitions = transitions;
+	this.numActions = transitions.numActions();
+	TransitionStore base = transitions;
+	if (transitions instanceof PatchedTransitionStore
+	    && ((PatchedTransitionStore) transitions).base() instanceof CsrTransitionStore) {
+	    PatchedTransitionStore patched = (PatchedTransitionStore) transitions;
+	    base = patched.base();
+	    patchedState = new boolean[transitions.numStates()];
+	    for (int r : patched.replacedRows())
+		patchedState[r / numActions] = true;
+	} else
+	    patchedState = null;
+	if (base instanceof CsrTransitionStore) {
+	    CsrTransitionStore csr = (CsrTransitionStore) base;
+	    rowOffset = csr.rowOffset;
+	    target = csr.target;
+	    prob = csr.prob;
+	} else {
+	    rowOffset = null;
+	    target = null;
+	    prob = null;
+	}
+    }
+
+    /**
+     * Returns the largest expected utility of the successors of state
+     * <tt>s</tt> over all actions, and stores the first action
+     * attaining it in <tt>action[s]</tt>, or action 0 if every value
+     * is NaN, so that <tt>action[s]</tt> is always a valid action.
+     */
+    public double backup(int s, double utility[], int action[]) {
+	if (rowOffset == null || (patchedState != null && patchedState[s]))
+	    return backupGeneric(s, utility, action);
+	double best = Double.NEGATIVE_INFINITY;
+	int bestA = 0;
+	int r = s * numActions;
+	int k = rowOffset[r];
+	for (int a = 0; a < numActions; a++) {
+	    int end = rowOffset[r + a + 1];
+	    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+	    for (; k + 3 < end; k += 4) {
+		s0 += prob[k] * utility[target[k]];
+		s1 += prob[k + 1] * utility[target[k + 1]];
+		s2 += prob[k + 2] * utility[target[k + 2]];
+		s3 += prob[k + 3] * utility[target[k + 3]];
+	    }
+	    for (; k < end; k++)
+		s0 += prob[k] * utility[target[k]];
+	    double q = (s0 + s1) + (s2 + s3);
+	    if (q > best) {
+		best = q;
+		bestA = a;
+	    }
+	}
+	action[s] = bestA;
+	return best;
+    }
+
+    /**
+     * Returns the expected utility of the successors of state
+     * <tt>s</tt> under action <tt>a</tt>, summed in the same order as
+     * <tt>backup</tt> sums it.
+     */
+    public double actionValue(int s, int a, double utility[]) {
+	if (rowOffset == null || (patchedState != null && patchedState[s]))
+	    return sumRow(transitions.rowStart(s, a), transitions.rowEnd(s, a), utility);
+	int r = s * numActions + a;
+	int k = rowOffset[r], end = rowOffset[r + 1];
+	double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+	for (; k + 3 < end; k += 4) {
+	    s0 += prob[k] * utility[target[k]];
+	    s1 += prob[k + 1] * utility[target[k + 1]];
+	    s2 += prob[k + 2] * utility[target[k + 2]];
+	    s3 += prob[k + 3] * utility[target[k + 3]];
+	}
+	for (; k < end; k++)
+	    s0 += prob[k] * utility[target[k]];
+	return (s0 + s1) + (s2 + s3);
+    }
+
+    private double backupGeneric(int s, double utility[], int action[]) {
+	double best = Double.NEGATIVE_INFINITY;
+	int bestA = 0;
+	for (int a = 0; a < numActions; a++) {
+	    double q = sumRow(transitions.rowStart(s, a), transitions.rowEnd(s, a), utility);
+	    if (q > best) {
+		best = q;
+		bestA = a;
+	    }
+	}
+	action[s] = bestA;
+	return best;
+    }
+
+    /** Sums transitions <tt>k</tt> to <tt>end-1</tt> of any store in
+     * the order of the CSR loops above. */
+    private double sumRow(int k, int end, double utility[]) {
+	TransitionStore t = transitions;
+	double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+	for (; k + 3 < end; k += 4) {
+	    s0 += t.prob(k) * utility[t.target(k)];
+	    s1 += t.prob(k + 1) * utility[t.target(k + 1)];
+	    s2 += t.prob(k + 2) * utility[t.target(k + 2)];
+	    s3 += t.prob(k + 3) * utility[t.target(k + 3)];
+	}
+	for (; k < end; k++)
+	    s0 += t.prob(k) * utility[t.target(k)];
+	return (s0 + s1) + (s2 + s3);
+    }
+}
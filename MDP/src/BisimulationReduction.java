@@ -0,0 +1,274 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class merges the states of an MDP that behave identically.
+ * Two states are bisimilar when they have the same reward and, under
+ * every action, the same probability of moving into each class of
+ * bisimilar states; bisimilar states have the same utility and the
+ * same best actions, so the MDP can be solved on one representative
+ * of each class.  The classes are found by partition refinement:
+ * starting from the states grouped by reward, a group is split
+ * whenever its states differ in the probabilities of moving into the
+ * current groups, until no group splits any more.
+ *
+ * <p>With a positive <tt>epsilon</tt>, rewards and probabilities are
+ * only compared after rounding them down to multiples of
+ * <tt>epsilon</tt>, which merges states that behave almost alike
+ * (approximate bisimulation).  The quotient is then only an
+ * approximation of the original MDP, whose quality depends on
+ * <tt>epsilon</tt>.  Without it, probabilities must agree exactly.
+ * The probabilities of moving into each class are added from the
+ * smallest up, so states whose rows are permutations of one another
+ * (as in symmetric models) get exactly the same totals; but states
+ * whose totals are made of different probabilities may still be kept
+ * apart by rounding, which a tiny <tt>epsilon</tt> avoids.
+ */
+public class BisimulationReduction {
+
+    /** the MDP with one state for each class of bisimilar states **/
+    public Mdp quotient;
+
+    /** the number of classes **/
+    public int numBlocks;
+
+    /** <tt>block[s]</tt> is the class of state <tt>s</tt>, which is
+     * state <tt>block[s]</tt> of the quotient MDP **/
+    public int block[];
+
+    /** <tt>representative[b]</tt> is the first state of class
+     * <tt>b</tt>, whose reward and transitions the quotient uses **/
+    public int representative[];
+
+    /** the number of refinement passes made **/
+    public int passes;
+
+    private int numStates;
+
+    /** scratch space for <tt>mergedRow</tt> **/
+    private long entry[] = new long[0];
+    private double entryProb[] = new double[0];
+
+    /** Finds the exact bisimulation classes of <tt>mdp</tt>. */
+    public BisimulationReduction(Mdp mdp) {
+	this(mdp, 0);
+    }
+
+    /**
+     * Finds the classes of <tt>mdp</tt>, comparing rewards and
+     * probabilities to within <tt>epsilon</tt> as described above,
+     * and builds the quotient MDP.
+     */
+    public BisimulationReduction(Mdp mdp, double epsilon) {
+	if (epsilon < 0)
+	    throw new IllegalArgumentException("epsilon must not be negative");
+	TransitionStore t = mdp.transitions();
+	numStates = mdp.numStates;
+	int numActions = mdp.numActions;
+
+	// the initial partition: states grouped by reward
+	block = new int[numStates];
+	Map<Signature, Integer> ids = new HashMap<Signature, Integer>();
+	for (int s = 0; s < numStates; s++)
+	    block[s] = id(ids, new Signature(new long[] {quantize(mdp.reward[s], epsilon)}));
+	numBlocks = ids.size();
+
+	// refine until no class splits; each signature includes the
+	// current class, so every pass refines the previous partition
+	int width = 0;
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++)
+		width = Math.max(width, t.rowEnd(s, a) - t.rowStart(s, a));
+	int rowBlock[] = new int[width];
+	double rowProb[] = new double[width];
+	long key[] = new long[1 + numActions * (1 + 2 * width)];
+	while (true) {
+	    passes++;
+	    ids.clear();
+	    int next[] = new int[numStates];
+	    for (int s = 0; s < numStates; s++) {
+		int n = 0;
+		key[n++] = block[s];
+		for (int a = 0; a < numActions; a++) {
+		    int size = mergedRow(t, s, a, rowBlock, rowProb);
+		    key[n++] = size;
+		    for (int i = 0; i < size; i++) {
+			key[n++] = rowBlock[i];
+			key[n++] = quantize(rowProb[i], epsilon);
+		    }
+		}
+		next[s] = id(ids, new Signature(Arrays.copyOf(key, n)));
+	    }
+	    block = next;
+	    if (ids.size() == numBlocks)
+		break;
+	    numBlocks = ids.size();
+	}
+
+	// build the quotient from the first state of each class
+	representative = new int[numBlocks];
+	Arrays.fill(representative, -1);
+	for (int s = 0; s < numStates; s++)
+	    if (representative[block[s]] < 0)
+		representative[block[s]] = s;
+	quotient = new Mdp();
+	quotient.numStates = numBlocks;
+	quotient.numActions = numActions;
+	quotient.actionName = mdp.actionName;
+	quotient.stateName = new String[numBlocks];
+	quotient.reward = new double[numBlocks];
+	quotient.startState = (mdp.startState < 0 ? -1 : block[mdp.startState]);
+	int rowOffset[] = new int[numBlocks * numActions + 1];
+	int total = 0;
+	for (int b = 0; b < numBlocks; b++)
+	    for (int a = 0; a < numActions; a++)
+		total += mergedRow(t, representative[b], a, rowBlock, rowProb);
+	int target[] = new int[total];
+	double prob[] = new double[total];
+	int k = 0;
+	for (int b = 0; b < numBlocks; b++) {
+	    int s = representative[b];
+	    quotient.stateName[b] = mdp.stateName[s];
+	    quotient.reward[b] = mdp.reward[s];
+	    for (int a = 0; a < numActions; a++) {
+		int size = mergedRow(t, s, a, rowBlock, rowProb);
+		System.arraycopy(rowBlock, 0, target, k, size);
+		System.arraycopy(rowProb, 0, prob, k, size);
+		k += size;
+		rowOffset[b * numActions + a + 1] = k;
+	    }
+	}
+	quotient.setTransitions(new CsrTransitionStore(numBlocks, numActions,
+						       rowOffset, target, prob));
+    }
+
+    /**
+     * Returns the utilities of all of the original states, given
+     * those of the quotient states.
+     */
+    public double[] liftUtility(double quotientUtility[]) {
+	double utility[] = new double[numStates];
+	for (int s = 0; s < numStates; s++)
+	    utility[s] = quotientUtility[block[s]];
+	return utility;
+    }
+
+    /**
+     * Returns a policy for all of the original states, given one for
+     * the quotient states.
+     */
+    public int[] liftPolicy(int quotientPolicy[]) {
+	int policy[] = new int[numStates];
+	for (int s = 0; s < numStates; s++)
+	    policy[s] = quotientPolicy[block[s]];
+	return policy;
+    }
+
+    /**
+     * Reduces the MDP in the file named by the first argument, and
+     * prints its numbers of states and classes.  If a second argument
+     * is given, it is the number of classes expected, and the program
+     * exits with status 1 if the reduction finds a different number.
+     * For instance, the six states of data/permuted.txt form 3
+     * classes, although two of the bisimilar states list the same
+     * probabilities in different orders.
+     */
+    public static void main(String argv[])
+	throws FileNotFoundException, IOException {
+	if (argv.length < 1 || argv.length > 2) {
+	    System.err.println("arguments: <mdp file> [<expected classes>]");
+	    return;
+	}
+	Mdp mdp = Mdp.load(argv[0]);
+	BisimulationReduction r = new BisimulationReduction(mdp);
+	System.out.println(argv[0] + ": " + mdp.numStates + " states, "
+			   + r.numBlocks + " classes");
+	if (argv.length == 2 && r.numBlocks != Integer.parseInt(argv[1])) {
+	    System.err.println("expected " + argv[1] + " classes");
+	    System.exit(1);
+	}
+    }
+
+    /**
+     * Fills <tt>rowBlock</tt> and <tt>rowProb</tt> with the classes
+     * that state <tt>s</tt> can move into under action <tt>a</tt>, in
+     * increasing order, and the total probability of moving into each
+     * (adding the probabilities in increasing order, so that the total
+     * does not depend on the order of the row), and returns how many
+     * there are.  Transitions of probability zero are left out.
+     */
+    private int mergedRow(TransitionStore t, int s, int a,
+			  int rowBlock[], double rowProb[]) {
+	int start = t.rowStart(s, a), end = t.rowEnd(s, a);
+	if (entry.length < end - start) {
+	    entry = new long[end - start];
+	    entryProb = new double[end - start];
+	}
+	// sort the transitions by class, and then by probability
+	int n = 0;
+	for (int k = start; k < end; k++)
+	    if (t.prob(k) > 0)
+		entryProb[n++] = t.prob(k);
+	int positive = n;
+	Arrays.sort(entryProb, 0, positive);
+	n = 0;
+	for (int k = start; k < end; k++)
+	    if (t.prob(k) > 0) {
+		int rank = Arrays.binarySearch(entryProb, 0, positive, t.prob(k));
+		entry[n++] = ((long) block[t.target(k)] << 32) | rank;
+	    }
+	Arrays.sort(entry, 0, n);
+
+	int size = 0;
+	for (int i = 0; i < n; i++) {
+	    int b = (int) (entry[i] >>> 32);
+	    double p = entryProb[(int) entry[i]];
+	    if (size > 0 && rowBlock[size - 1] == b)
+		rowProb[size - 1] += p;
+	    else {
+		rowBlock[size] = b;
+		rowProb[size++] = p;
+	    }
+	}
+	return size;
+    }
+
+    /** Returns the exact bits of <tt>x</tt>, or its multiple of
+     * <tt>epsilon</tt> rounded down if <tt>epsilon</tt> is positive. */
+    private static long quantize(double x, double epsilon) {
+	return (epsilon > 0 ? (long) Math.floor(x / epsilon)
+		: Double.doubleToLongBits(x + 0.0));
+    }
+
+    /** Returns the number of the given signature, numbering new ones
+     * in order of appearance. */
+    private static int id(Map<Signature, Integer> ids, Signature key) {
+	Integer id = ids.get(key);
+	if (id == null) {
+	    id = ids.size();
+	    ids.put(key, id);
+	}
+	return id;
+    }
+
+    /** an array of longs usable as a hash key **/
+    private static class Signature {
+	private long key[];
+	private int hash;
+
+	private Signature(long key[]) {
+	    this.key = key;
+	    this.hash = Arrays.hashCode(key);
+	}
+
+	public int hashCode() {
+	    return hash;
+	}
+
+	public boolean equals(Object o) {
+	    return o instanceof Signature && Arrays.equals(key, ((Signature) o).key);
+	}
+    }
+}
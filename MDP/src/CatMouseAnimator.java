@@ -70,6 +70,8 @@ public class CatMouseAnimator {
 	    cat_legal[cm.cx - minx][cm.cy - miny] = true;
 	}
 
+	mouse_visits = new long[lenx][leny];
+	cat_visits = new long[lenx][leny];
 
     }
 
@@ -87,6 +89,112 @@ public class CatMouseAnimator {
 	}
     }
 
+    /**
+     * This method runs the given MDP (provided to the constructor) for
+     * <tt>numSteps</tt> steps, following the sequence of states
+     * provided by the given <tt>simulator</tt>, as fast as possible.
+     * Nothing is printed except, if <tt>frameInterval</tt> is
+     * positive, the state reached every <tt>frameInterval</tt> steps.
+     * Along the way, the statistics reported by <tt>captures</tt>,
+     * <tt>meanCaptureTime</tt>, <tt>mouseVisits</tt> and
+     * <tt>catVisits</tt> are gathered; they accumulate over calls, so
+     * a long run can be made in pieces, with <tt>printFrame</tt> or
+     * <tt>printStatistics</tt> in between.
+     */
+    public void animateHeadless(MdpSimulator simulator, long numSteps,
+				long frameInterval) {
+	if (capture == null) {
+	    capture = new boolean[mdp.numStates];
+	    for (int s = 0; s < mdp.numStates; s++)
+		capture[s] = (cmp[s].mx == cmp[s].cx && cmp[s].my == cmp[s].cy);
+	}
+	for (long i = 0; i < numSteps; i++) {
+	    int s = simulator.nextState();
+	    CatMousePosition cm = cmp[s];
+	    mouse_visits[cm.mx - minx][cm.my - miny]++;
+	    cat_visits[cm.cx - minx][cm.cy - miny]++;
+	    steps++;
+	    if (capture[s]) {
+		// a capture lasting several steps is counted once
+		if (!captured) {
+		    num_captures++;
+		    capture_steps += steps - last_release;
+		}
+	    } else if (captured)
+		last_release = steps - 1;
+	    captured = capture[s];
+	    last_state = s;
+	    if (frameInterval > 0 && steps % frameInterval == 0)
+		print_state(s);
+	}
+    }
+
+    /**
+     * Prints the state most recently reached by
+     * <tt>animateHeadless</tt>, if any, as <tt>animatePrintOnly</tt>
+     * prints states.
+     */
+    public void printFrame() {
+	if (last_state >= 0)
+	    print_state(last_state);
+    }
+
+    /**
+     * Prints a summary of the statistics gathered by
+     * <tt>animateHeadless</tt>: the number of steps and captures, the
+     * mean capture time, and the fraction of the steps the mouse and
+     * the cat spent in each cell.
+     */
+    public void printStatistics() {
+	out.println("steps:              " + steps);
+	out.println("captures:           " + num_captures);
+	out.println("mean capture time:  " + meanCaptureTime());
+	out.println("mouse visits (percent of steps):");
+	print_visits(mouse_visits);
+	out.println("cat visits (percent of steps):");
+	print_visits(cat_visits);
+    }
+
+    /** Returns the number of steps run by <tt>animateHeadless</tt>. */
+    public long steps() {
+	return steps;
+    }
+
+    /**
+     * Returns the number of times <tt>animateHeadless</tt> saw the cat
+     * catch the mouse, that is, move onto the same cell.
+     */
+    public long captures() {
+	return num_captures;
+    }
+
+    /**
+     * Returns the mean number of steps <tt>animateHeadless</tt> took
+     * from the start, or from the end of the previous capture, to a
+     * capture, or <tt>NaN</tt> if there have been no captures.
+     */
+    public double meanCaptureTime() {
+	return (num_captures == 0
+		? Double.NaN
+		: capture_steps / (double) num_captures);
+    }
+
+    /**
+     * Returns the number of steps <tt>animateHeadless</tt> found the
+     * mouse in cell <tt>(x,y)</tt>.
+     */
+    public long mouseVisits(int x, int y) {
+	return visits(mouse_visits, x, y);
+    }
+
+    /**
+     * Returns the number of steps <tt>animateHeadless</tt> found the
+     * cat in cell <tt>(x,y)</tt>.
+     */
+    public long catVisits(int x, int y) {
+	return visits(cat_visits, x, y);
+    }
+
     /**
      * This method invokes a graphical animation of the given MDP
      * (provided to the constructor) according to the state sequence
@@ -144,6 +252,37 @@ public class CatMouseAnimator {
     private boolean cat_legal[][];
     private boolean mouse_legal[][];
 
+    // statistics of headless runs
+    private boolean capture[] = null;
+    private long mouse_visits[][];
+    private long cat_visits[][];
+    private long steps = 0;
+    private long num_captures = 0;
+    private long capture_steps = 0;
+    private long last_release = 0;
+    private boolean captured = false;
+    private int last_state = -1;
+
+    private long visits(long counts[][], int x, int y) {
+	return (x < minx || x > maxx || y < miny || y > maxy
+		? 0
+		: counts[x - minx][y - miny]);
+    }
+
+    private void print_visits(long counts[][]) {
+	for (int y = maxy; y >= miny; y--) {
+	    out.print("    |");
+	    for (int x = minx; x <= maxx; x++) {
+		if (!cat_legal[x-minx][y-miny] && !mouse_legal[x-minx][y-miny])
+		    out.print("      ");
+		else
+		    out.printf(" %5.1f",
+			       (steps == 0 ? 0.0 : 100.0 * counts[x-minx][y-miny] / steps));
+	    }
+	    out.println(" |");
+	}
+    }
+
     private static final String CAT_SYMB = "C";
     private static final String CHEESE_SYMB = "z";
     private static final String MOUSE_ON_CHEESE_SYMB = "M";
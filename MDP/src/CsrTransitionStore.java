@@ -0,0 +1,146 @@
+/**
+ * This class stores the transitions of an MDP in compressed sparse row
+ * form: a single array of target states, a single array of
+ * probabilities, and an array of offsets with one entry per
+ * state-action pair.  The transitions of <tt>(s,a)</tt> occupy
+ * indices <tt>rowOffset[s*numActions+a]</tt> up to (but not
+ * including) <tt>rowOffset[s*numActions+a+1]</tt>.  Compared with the
+ * jagged <tt>nextState</tt> and <tt>transProb</tt> arrays of
+ * <tt>Mdp</tt>, this needs three arrays in total instead of two per
+ * state-action pair, and a sweep over all states reads memory
+ * sequentially.
+ */
+public class CsrTransitionStore implements TransitionStore {
+
+    /** total number of states */
+    public final int numStates;
+
+    /** total number of actions */
+    public final int numActions;
+
+    /** offsets of the transitions of each state-action pair; has
+     * <tt>numStates*numActions+1</tt> entries **/
+    public int rowOffset[];
+
+    /** the state reached by each transition **/
+    public int target[];
+
+    /** the probability of each transition **/
+    public double prob[];
+
+    /**
+     * Builds the compressed form of the transitions of the given
+     * <tt>mdp</tt>, which must have its <tt>nextState</tt> and
+     * <tt>transProb</tt> fields filled in.  The order of the
+     * transitions within each row is preserved.
+     */
+    public CsrTransitionStore(Mdp mdp) {
+	numStates = mdp.numStates;
+	numActions = mdp.numActions;
+	rowOffset = new int[numStates * numActions + 1];
+
+	int count = 0;
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		rowOffset[s * numActions + a] = count;
+		count += mdp.nextState[s][a].length;
+	    }
+	rowOffset[numStates * numActions] = count;
+
+	target = new int[count];
+	prob = new double[count];
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		int k = rowOffset[s * numActions + a];
+		int n = mdp.nextState[s][a].length;
+		System.arraycopy(mdp.nextState[s][a], 0, target, k, n);
+		System.arraycopy(mdp.transProb[s][a], 0, prob, k, n);
+	    }
+    }
+
+    /**
+     * Copies the transitions of any other store into the compressed
+     * form.
+     */
+    public CsrTransitionStore(TransitionStore other) {
+	numStates = other.numStates();
+	numActions = other.numActions();
+	rowOffset = new int[numStates * numActions + 1];
+	target = new int[other.numTransitions()];
+	prob = new double[target.length];
+	int k = 0;
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		int end = other.rowEnd(s, a);
+		for (int j = other.rowStart(s, a); j < end; j++) {
+		    target[k] = other.target(j);
+		    prob[k] = other.prob(j);
+		    k++;
+		}
+		rowOffset[s * numActions + a + 1] = k;
+	    }
+    }
+
+    /**
+     * Wraps already compressed arrays.  The arrays are used directly,
+     * not copied.
+     */
+    public CsrTransitionStore(int numStates, int numActions,
+			      int rowOffset[], int target[], double prob[]) {
+	if (rowOffset.length != numStates * numActions + 1)
+	    throw new IllegalArgumentException("rowOffset must have "
+					       + (numStates * numActions + 1)
+					       + " entries");
+	this.numStates = numStates;
+	this.numActions = numActions;
+	this.rowOffset = rowOffset;
+	this.target = target;
+	this.prob = prob;
+    }
+
+    public int numStates() {
+	return numStates;
+    }
+
+    public int numActions() {
+	return numActions;
+    }
+
+    public int numTransitions() {
+	return rowOffset[numStates * numActions];
+    }
+
+    public int rowStart(int s, int a) {
+	return rowOffset[s * numActions + a];
+    }
+
+    public int rowEnd(int s, int a) {
+	return rowOffset[s * numActions + a + 1];
+    }
+
+    public int target(int k) {
+	return target[k];
+    }
+
+    public double prob(int k) {
+	return prob[k];
+    }
+
+    public double expectedUtility(int s, int a, double utility[]) {
+	double sum = 0.0;
+	int r = s * numActions + a;
+	int end = rowOffset[r + 1];
+	for (int k = rowOffset[r]; k < end; k++)
+	    sum += prob[k] * utility[target[k]];
+	return sum;
+    }
+
+    public double expectedUtility(int s, int a, float utility[]) {
+	double sum = 0.0;
+	int r = s * numActions + a;
+	int end = rowOffset[r + 1];
+	for (int k = rowOffset[r]; k < end; k++)
+	    sum += prob[k] * utility[target[k]];
+	return sum;
+    }
+}
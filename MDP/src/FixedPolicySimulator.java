@@ -13,7 +13,7 @@ public class FixedPolicySimulator implements MdpSimulator {
      */
     public FixedPolicySimulator(Mdp mdp, int[] policy) {
 	this.mdp = mdp;
-	this.policy = policy;
+	this.sampler = new PolicySampler(mdp, policy);
 	cur_state = mdp.startState;
     }
 
@@ -25,14 +25,7 @@ public class FixedPolicySimulator implements MdpSimulator {
      */
     public int nextState() {
 	int s = cur_state;
-	int a = policy[s];
-	double[] tp = mdp.transProb[s][a];
-	double r = rand.nextDouble();
-	int j = -1;
-	while (r >= 0.0) {
-	    r -= tp[++j];
-	}
-	cur_state = mdp.nextState[s][a][j];
+	cur_state = sampler.sample(s, rand.nextDouble());
 
 	return s;
     }
@@ -41,7 +34,7 @@ public class FixedPolicySimulator implements MdpSimulator {
     // private stuff
 
     private Mdp mdp;
-    private int[] policy;
+    private PolicySampler sampler;
     private int cur_state;
     private Random rand = new Random();
 }
@@ -0,0 +1,156 @@
+/**
+ * This class runs value iteration like <tt>ValueIteration</tt> (with
+ * Jacobi sweeps), but keeps the utilities in <tt>float</tt> arrays,
+ * halving the memory they take.  Each backup is still summed in
+ * <tt>double</tt> precision and only rounded when it is stored.
+ * Combined with a <tt>QuantizedTransitionStore</tt> (see
+ * <tt>Mdp.compactTransitions</tt>), this lets much larger MDPs fit in
+ * memory.
+ *
+ * <p>Since a <tt>float</tt> cannot resolve the tolerance used by the
+ * double solver, the sweeps stop once the utilities change by no more
+ * than a couple of units in the last place.  Rounding can also keep
+ * the utilities cycling above that, by as much as about
+ * <tt>1/(1-discount)</tt> units in the last place, so the sweeps also
+ * stop once the change has not reached a new low for
+ * <tt>STALL_SWEEPS</tt> sweeps, or after a given number of sweeps.
+ * The error this causes is
+ * then measured rather than guessed: the Bellman residual of the
+ * final utilities is computed in <tt>double</tt> precision, which
+ * bounds both the distance of the utilities from the optimal ones and
+ * the loss of the returned policy.
+ */
+public class FloatValueIteration {
+
+    /** the computed policy for the given MDP **/
+    public int policy[];
+
+    /** the computed utility for the given MDP **/
+    public float utility[];
+
+    /** the number of sweeps performed **/
+    public int iterations;
+
+    /** the largest change in utility during the last sweep **/
+    public double residual;
+
+    /** whether the sweeps stopped because the utilities converged,
+     * rather than because they stalled or ran out of sweeps **/
+    public boolean converged;
+
+    /** the number of sweeps without a new lowest change after which
+     * the sweeps are taken to have stalled **/
+    public static final int STALL_SWEEPS = 16;
+
+    /** the largest difference, over all of the states, between the
+     * final utility and its backed-up value **/
+    public double bellmanResidual;
+
+    /** an upper bound on the largest difference between
+     * <tt>utility</tt> and the optimal utility:
+     * <tt>bellmanResidual/(1-discount)</tt> **/
+    public double utilityErrorBound;
+
+    /** an upper bound on how much less than optimal the utility of
+     * <tt>policy</tt> is in any state:
+     * <tt>2*discount*bellmanResidual/(1-discount)</tt> **/
+    public double policyLossBound;
+
+    /**
+     * Computes a policy and utility for the given <tt>mdp</tt> with
+     * the given <tt>discount</tt> factor, and the error bounds that go
+     * with them.
+     */
+    public FloatValueIteration(Mdp mdp, double discount) {
+	this(mdp, discount, 0);
+    }
+
+    /**
+     * Computes a policy, utility and error bounds as the two-argument
+     * constructor does, running at most <tt>maxSweeps</tt> sweeps
+     * (with 0 meaning no limit).
+     */
+    public FloatValueIteration(Mdp mdp, double discount, int maxSweeps) {
+	TransitionStore t = mdp.transitions();
+	int numStates = mdp.numStates, numActions = mdp.numActions;
+	double delta = Math.pow(10, -13) * (1 - discount) / discount;
+	float previous[] = new float[numStates];
+	utility = new float[numStates];
+	policy = new int[numStates];
+
+	double lowest = Double.POSITIVE_INFINITY;
+	int sinceLowest = 0;
+	while (true) {
+	    float swap[] = previous;
+	    previous = utility;
+	    utility = swap;
+	    double maxDifference = 0, maxUtility = 0;
+	    for (int s = 0; s < numStates; s++) {
+		double best = Double.NEGATIVE_INFINITY;
+		for (int a = 0; a < numActions; a++) {
+		    double q = t.expectedUtility(s, a, previous);
+		    if (q > best) {
+			best = q;
+			policy[s] = a;
+		    }
+		}
+		utility[s] = (float) (mdp.reward[s] + discount * best);
+		maxDifference = Math.max(maxDifference,
+					 Math.abs(utility[s] - previous[s]));
+		maxUtility = Math.max(maxUtility, Math.abs(utility[s]));
+	    }
+	    iterations++;
+	    residual = maxDifference;
+	    if (maxDifference <= Math.max(delta, 2 * Math.ulp((float) maxUtility))) {
+		converged = true;
+		break;
+	    }
+	    if (maxDifference < lowest) {
+		lowest = maxDifference;
+		sinceLowest = 0;
+	    } else if (++sinceLowest >= STALL_SWEEPS)
+		break;
+	    if (iterations == maxSweeps)
+		break;
+	}
+
+	// measure the Bellman residual of the final utilities, and
+	// choose the greedy policy for them
+	bellmanResidual = 0;
+	for (int s = 0; s < numStates; s++) {
+	    double best = Double.NEGATIVE_INFINITY;
+	    for (int a = 0; a < numActions; a++) {
+		double q = t.expectedUtility(s, a, utility);
+		if (q > best) {
+		    best = q;
+		    policy[s] = a;
+		}
+	    }
+	    bellmanResidual = Math.max(bellmanResidual,
+				       Math.abs(mdp.reward[s] + discount * best
+						- utility[s]));
+	}
+	utilityErrorBound = bellmanResidual / (1 - discount);
+	policyLossBound = 2 * discount * bellmanResidual / (1 - discount);
+    }
+
+    /** Returns the largest difference between <tt>utility</tt> and
+     * the given utilities, for instance those computed by
+     * <tt>ValueIteration</tt>. */
+    public double maxDifference(double other[]) {
+	double m = 0;
+	for (int s = 0; s < utility.length; s++)
+	    m = Math.max(m, Math.abs(utility[s] - other[s]));
+	return m;
+    }
+
+    /** Returns the number of states whose action differs from the
+     * given policy. */
+    public int policyDifferences(int other[]) {
+	int n = 0;
+	for (int s = 0; s < policy.length; s++)
+	    if (policy[s] != other[s])
+		n++;
+	return n;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * This class brings the solution of an MDP up to date after a few of
+ * its states have been edited with <tt>Mdp.setReward</tt> or
+ * <tt>Mdp.setTransitionRow</tt>, starting from the utility and policy
+ * computed before the edits instead of solving from scratch.
+ *
+ * <p>Only the edited states can start out with their utility away
+ * from its backed-up value (up to the tolerance of the earlier
+ * solve), so the changes are followed outward from them in rounds,
+ * with the bounds of prioritized sweeping: an edited state is queued
+ * with its exact Bellman residual, and a state is queued for the next
+ * round only when the changes of its successors may have moved its
+ * backed-up value by more than the threshold.  Work therefore spreads
+ * only to states upstream of the edits, and only as far as the
+ * changes stay significant.  If a round grows to a sizable fraction
+ * of the upstream states, following the changes one state at a time
+ * costs more than sweeping, and the solve finishes with in-place
+ * sweeps over the upstream states alone.  The greedy action is
+ * recomputed only for states with a changed successor.
+ */
+public class IncrementalValueIteration {
+
+    /** the updated optimal policy **/
+    public int policy[];
+
+    /** the updated optimal utility **/
+    public double utility[];
+
+    /** the number of single-state backups performed **/
+    public long backups;
+
+    /** the number of distinct states whose utility changed **/
+    public int changedStates;
+
+    /** the number of sweeps over all the upstream states performed
+     * once the changes had spread too widely to follow state by
+     * state **/
+    public int sweeps;
+
+    /** changes are followed state by state only while fewer than
+     * <tt>1/DENSE_FRACTION</tt> of the upstream states are waiting to
+     * be backed up **/
+    private static final int DENSE_FRACTION = 4;
+
+    /**
+     * Updates the given solution, <tt>previousUtility</tt> and
+     * <tt>previousPolicy</tt> (for instance the <tt>utility</tt> and
+     * <tt>policy</tt> fields of a <tt>ValueIteration</tt>, which are
+     * not modified), of <tt>mdp</tt> with the given <tt>discount</tt>
+     * factor, after the states in <tt>editedStates</tt> have been
+     * edited.  The updated solution is as accurate as one computed by
+     * <tt>ValueIteration</tt>.
+     */
+    public IncrementalValueIteration(Mdp mdp, double discount,
+				     double previousUtility[],
+				     int previousPolicy[],
+				     int editedStates[]) {
+	this(mdp, discount, previousUtility, previousPolicy, editedStates,
+	     Math.pow(10, -13) * (1 - discount) / discount);
+    }
+
+    /**
+     * Updates the given solution as the five-argument constructor
+     * does, but stops propagating changes once no state's backed-up
+     * value can have moved by more than <tt>threshold</tt> (or, once
+     * sweeping, when no utility changes by that much in a sweep).  A
+     * large threshold trades accuracy for a much smaller update; the
+     * five-argument constructor uses the tolerance of
+     * <tt>ValueIteration</tt>.
+     */
+    public IncrementalValueIteration(Mdp mdp, double discount,
+				     double previousUtility[],
+				     int previousPolicy[],
+				     int editedStates[], double threshold) {
+	int numStates = mdp.numStates;
+	if (previousUtility.length != numStates || previousPolicy.length != numStates)
+	    throw new IllegalArgumentException("previous solution has "
+					       + previousUtility.length
+					       + " states, expected " + numStates);
+	utility = previousUtility.clone();
+	policy = previousPolicy.clone();
+	BellmanKernel kernel = new BellmanKernel(mdp.transitions());
+	PredecessorIndex predecessors = mdp.predecessors();
+	double bound[] = new double[numStates];
+
+	// states whose greedy action must be recomputed at the end, the
+	// list of states that have ever been marked, and states whose
+	// utility has changed
+	boolean stale[] = new boolean[numStates], listed[] = new boolean[numStates];
+	boolean changed[] = new boolean[numStates];
+	int staleList[] = new int[numStates], numStale = 0;
+
+	// the states to back up in this round and in the next one
+	boolean queued[] = new boolean[numStates];
+	int current[] = new int[numStates], next[] = new int[numStates];
+	int numCurrent = 0, numNext = 0;
+
+	// seed the first round with the edited states, queued by their
+	// exact residuals
+	for (int i = 0; i < editedStates.length; i++) {
+	    int s = editedStates[i];
+	    double backedUp = mdp.reward[s] + discount * kernel.backup(s, utility, policy);
+	    backups++;
+	    bound[s] = Math.abs(backedUp - utility[s]);
+	    if (bound[s] > threshold && !queued[s]) {
+		queued[s] = true;
+		current[numCurrent++] = s;
+	    }
+	}
+
+	// the states whose utility can depend on the edited ones; no
+	// other state is ever backed up
+	boolean upstream[] = predecessors.upstream(editedStates);
+	int numUpstream = 0;
+	for (int s = 0; s < numStates; s++)
+	    if (upstream[s])
+		numUpstream++;
+
+	while (numCurrent > 0) {
+	    if (numCurrent > numUpstream / DENSE_FRACTION) {
+		sweepUpstream(mdp, discount, kernel, upstream, threshold, changed);
+		numStale = 0;	// every upstream state was backed up
+		break;
+	    }
+	    for (int i = 0; i < numCurrent; i++) {
+		int s = current[i];
+		queued[s] = false;
+		bound[s] = 0;
+		double oldUtility = utility[s];
+		utility[s] = mdp.reward[s] + discount * kernel.backup(s, utility, policy);
+		backups++;
+		stale[s] = false;	// its action is greedy for the current utilities
+		double difference = Math.abs(utility[s] - oldUtility);
+		if (difference == 0)
+		    continue;
+		if (!changed[s]) {
+		    changed[s] = true;
+		    changedStates++;
+		}
+		for (int k = predecessors.offset[s]; k < predecessors.end[s]; k++) {
+		    int p = predecessors.state[k];
+		    stale[p] = true;
+		    if (!listed[p]) {
+			listed[p] = true;
+			staleList[numStale++] = p;
+		    }
+		    bound[p] += discount * predecessors.maxProb[k] * difference;
+		    if (bound[p] > threshold && !queued[p]) {
+			queued[p] = true;
+			next[numNext++] = p;
+		    }
+		}
+	    }
+	    int swap[] = current;
+	    current = next;
+	    next = swap;
+	    numCurrent = numNext;
+	    numNext = 0;
+	}
+
+	// choose the greedy action again where a successor has changed
+	for (int i = 0; i < numStale; i++)
+	    if (stale[staleList[i]]) {
+		kernel.backup(staleList[i], utility, policy);
+		backups++;
+	    }
+    }
+
+    /**
+     * Runs in-place sweeps over the upstream states, in order, until
+     * no utility changes by <tt>threshold</tt> or more, as the
+     * <tt>GAUSS_SEIDEL</tt> mode of <tt>ValueIteration</tt> does.
+     */
+    private void sweepUpstream(Mdp mdp, double discount, BellmanKernel kernel,
+			       boolean upstream[], double threshold, boolean changed[]) {
+	int numStates = mdp.numStates;
+	double maxDifference;
+	do {
+	    maxDifference = 0;
+	    for (int s = 0; s < numStates; s++) {
+		if (!upstream[s])
+		    continue;
+		double oldUtility = utility[s];
+		utility[s] = mdp.reward[s] + discount * kernel.backup(s, utility, policy);
+		backups++;
+		double difference = Math.abs(utility[s] - oldUtility);
+		if (difference > maxDifference)
+		    maxDifference = difference;
+		if (difference != 0 && !changed[s]) {
+		    changed[s] = true;
+		    changedStates++;
+		}
+	    }
+	    sweeps++;
+	} while (threshold <= maxDifference);
+    }
+}
@@ -0,0 +1,70 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * This class reads compressed sparse row transitions (see
+ * <tt>CsrTransitionStore</tt>) straight out of buffers, typically
+ * views of a memory-mapped file written by <tt>MdpBinaryFormat</tt>.
+ * Nothing is copied onto the heap, so opening a store costs no more
+ * than mapping the file, and the operating system pages the
+ * transitions in as the solvers touch them.
+ */
+public class MappedTransitionStore implements TransitionStore {
+
+    private final int numStates, numActions;
+    private final IntBuffer rowOffset;
+    private final IntBuffer target;
+    private final DoubleBuffer prob;
+
+    /**
+     * Wraps the given buffers, which are read with absolute gets from
+     * index 0 and must hold <tt>numStates*numActions+1</tt> offsets
+     * and as many targets and probabilities as the last offset says.
+     */
+    public MappedTransitionStore(int numStates, int numActions,
+				 IntBuffer rowOffset, IntBuffer target,
+				 DoubleBuffer prob) {
+	this.numStates = numStates;
+	this.numActions = numActions;
+	this.rowOffset = rowOffset;
+	this.target = target;
+	this.prob = prob;
+    }
+
+    public int numStates() {
+	return numStates;
+    }
+
+    public int numActions() {
+	return numActions;
+    }
+
+    public int numTransitions() {
+	return rowOffset.get(numStates * numActions);
+    }
+
+    public int rowStart(int s, int a) {
+	return rowOffset.get(s * numActions + a);
+    }
+
+    public int rowEnd(int s, int a) {
+	return rowOffset.get(s * numActions + a + 1);
+    }
+
+    public int target(int k) {
+	return target.get(k);
+    }
+
+    public double prob(int k) {
+	return prob.get(k);
+    }
+
+    public double expectedUtility(int s, int a, double utility[]) {
+	double sum = 0.0;
+	int r = s * numActions + a;
+	int end = rowOffset.get(r + 1);
+	for (int k = rowOffset.get(r); k < end; k++)
+	    sum += prob.get(k) * utility[target.get(k)];
+	return sum;
+    }
+}
@@ -30,29 +30,95 @@ public class Mdp {
     public double reward[];
 
     /** a list of the possible states that can be reached from each
-     * state under each action **/
+     * state under each action; null if the MDP was loaded straight
+     * into a <tt>TransitionStore</tt> **/
     public int nextState[][][];
 
     /** a table of transition probabilities:
      * <tt>transProb[s][a][i]</tt> is the probability of transitioning
      * from state <tt>s</tt> under action <tt>a</tt> to state
-     * <tt>nextState[s][a][i]</tt>. **/
+     * <tt>nextState[s][a][i]</tt>; null if the MDP was loaded
+     * straight into a <tt>TransitionStore</tt> **/
     public double transProb[][][];
 
     /** the start state **/
     public int startState = -1;
 
+    /** maps each state name to its index in <tt>stateName</tt>; null
+     * until built by the file-reading constructor or by
+     * <tt>stateMap</tt> **/
+    public Map<String, Integer> state_map;
+
+    /** maps each action name to its index in <tt>actionName</tt>;
+     * null until built by the file-reading constructor or by
+     * <tt>actionMap</tt> **/
+    public Map<String, Integer> action_map;
+
+    /** the transitions in the layout read by the solvers **/
+    private TransitionStore transitions;
+
+    /** the states leading into each state **/
+    private PredecessorIndex predecessors;
+
+    /** This constructor leaves all of the fields to be filled in, by
+     * a subclass or by one of the loaders that install a
+     * <tt>TransitionStore</tt> instead of the jagged arrays.
+     */
+    protected Mdp() {
+    }
+
+    /**
+     * Reads an MDP from <tt>filename</tt>, choosing the reader by the
+     * file name: files ending in ".mdpb" are memory-mapped by
+     * <tt>MdpBinaryFormat</tt>, gzipped files are read by
+     * <tt>ParallelMdpLoader</tt> when there is more than one
+     * processor, and anything else is read by
+     * <tt>MdpTextLoader</tt>.  Either way, the transitions are only
+     * available through <tt>transitions()</tt>.
+     */
+    public static Mdp load(String filename)
+	throws FileNotFoundException, IOException {
+	if (filename.endsWith(MdpBinaryFormat.SUFFIX))
+	    return MdpBinaryFormat.read(filename);
+	if (filename.endsWith(".gz")
+	    && Runtime.getRuntime().availableProcessors() > 1)
+	    return ParallelMdpLoader.load(filename);
+	return MdpTextLoader.load(filename);
+    }
+
     /** This constructor reads in data from <tt>filename</tt> and sets
      * up all of the public fields.  See assignment instructions for
      * information on the required format of this file.  This
      * constructor will properly read data from a gzipped file if
      * <tt>filename</tt> ends with a ".gz" suffix.
+     *
+     * <p><b>Memory:</b> the solvers read the transitions through
+     * <tt>transitions()</tt>, which copies <tt>nextState</tt> and
+     * <tt>transProb</tt> into a <tt>CsrTransitionStore</tt> and keeps
+     * both, since code outside the solvers may still read the public
+     * arrays.  An MDP read this way and then solved therefore holds
+     * its transitions twice: the jagged arrays, at 12 bytes a
+     * transition plus two array headers a state-action pair, and the
+     * copy, at 12 bytes a transition.  Call
+     * <tt>compactTransitions</tt> once the arrays are no longer
+     * needed to free them, or read the MDP with <tt>load</tt>, which
+     * never builds them.
      */
     public Mdp(String filename) throws FileNotFoundException, IOException {
+	this(filename, false);
+    }
+
+    /** This constructor reads in data from <tt>filename</tt> as the
+     * one-argument constructor does.  If <tt>buildPredecessors</tt>
+     * is true, it also builds the index returned by
+     * <tt>predecessors</tt> straight away.
+     */
+    public Mdp(String filename, boolean buildPredecessors)
+	throws FileNotFoundException, IOException {
 	LineNumberReader in;
 	String line;
-	Map<String, Integer> state_map = new HashMap<String, Integer>();
-	Map<String, Integer> action_map = new HashMap<String, Integer>();
+	state_map = new HashMap<String, Integer>();
+	action_map = new HashMap<String, Integer>();
 	Vector1d<Double> reward_vec = new Vector1d<Double>();
 	Vector2d<Map<Integer, Double>> trans_prob_vec =
 	    new Vector2d<Map<Integer, Double>>();
@@ -202,6 +268,219 @@ public class Mdp {
 		    transProb[fs][a][i] /= sum;
 	    }
 	in.close();
+
+	if (buildPredecessors)
+	    predecessors();
+    }
+
+    /**
+     * Returns the transitions of this MDP through the accessor
+     * interface used by the solvers.  Unless another store has been
+     * installed with <tt>setTransitions</tt>, a compressed copy of
+     * <tt>nextState</tt> and <tt>transProb</tt> is built on the first
+     * call, and the arrays are kept beside it (see the
+     * <tt>Mdp(String)</tt> constructor).
+     */
+    public TransitionStore transitions() {
+	if (transitions == null)
+	    transitions = new CsrTransitionStore(this);
+	return transitions;
+    }
+
+    /**
+     * Returns <tt>state_map</tt>, building it from <tt>stateName</tt>
+     * first if it is null, as it is for MDPs built by the loaders.
+     * Looking a name up in the map does not allocate.
+     */
+    public Map<String, Integer> stateMap() {
+	if (state_map == null)
+	    state_map = arrayToMap(stateName);
+	return state_map;
+    }
+
+    /**
+     * Returns <tt>action_map</tt>, building it from
+     * <tt>actionName</tt> first if it is null.
+     */
+    public Map<String, Integer> actionMap() {
+	if (action_map == null)
+	    action_map = arrayToMap(actionName);
+	return action_map;
+    }
+
+    /**
+     * Installs the store returned by <tt>transitions</tt>.  The store
+     * must describe the same transitions as <tt>nextState</tt> and
+     * <tt>transProb</tt>.
+     */
+    public void setTransitions(TransitionStore transitions) {
+	if (transitions.numStates() != numStates
+	    || transitions.numActions() != numActions)
+	    throw new IllegalArgumentException("transition store has "
+					       + transitions.numStates()
+					       + " states and "
+					       + transitions.numActions()
+					       + " actions, expected "
+					       + numStates + " and "
+					       + numActions);
+	this.transitions = transitions;
+	predecessors = null;
+    }
+
+    /**
+     * Replaces the transitions of this MDP by a compact store and
+     * frees <tt>nextState</tt> and <tt>transProb</tt>, which are set
+     * to null.  If <tt>quantize</tt> is true, the store keeps each
+     * probability as an index into a table of the distinct
+     * probabilities (see <tt>QuantizedTransitionStore</tt>);
+     * otherwise it is a <tt>CsrTransitionStore</tt>.
+     */
+    public void compactTransitions(boolean quantize) {
+	TransitionStore t = transitions();
+	if (quantize && !(t instanceof QuantizedTransitionStore))
+	    t = new QuantizedTransitionStore(t);
+	setTransitions(t);
+	nextState = null;
+	transProb = null;
+    }
+
+    /**
+     * Changes the reward of state <tt>s</tt> to <tt>r</tt>.  A solution
+     * computed before the change can be brought up to date with
+     * <tt>IncrementalValueIteration</tt>, passing it <tt>s</tt> as a
+     * changed state.
+     */
+    public void setReward(int s, double r) {
+	if (s < 0 || s >= numStates)
+	    throw new IllegalArgumentException("no state " + s);
+	reward[s] = r;
+    }
+
+    /**
+     * Replaces the transitions of state <tt>s</tt> under action
+     * <tt>a</tt>: the action now moves to <tt>targets[i]</tt> with
+     * probability <tt>probs[i]</tt>.  As when an MDP is read from a
+     * file, repeated targets have their probabilities added, the
+     * targets are put in increasing order and the probabilities are
+     * normalized to sum to one.  <tt>nextState</tt> and
+     * <tt>transProb</tt> are updated if present.
+     *
+     * <p>The store returned by <tt>transitions</tt> is not changed:
+     * it is replaced by a <tt>PatchedTransitionStore</tt> over it, so
+     * kernels, samplers and solvers built on the old store keep seeing
+     * the old row, and the change takes time linear in the length of
+     * the row, whatever the kind of store.  Once the replaced rows
+     * outgrow the store they patch, they are packed into a new store
+     * of the same kind (an <tt>OffHeapTransitionStore</tt> for a
+     * memory-mapped one), which takes time linear in the number of
+     * transitions but only happens after as many edits.  The index
+     * returned by <tt>predecessors</tt>, if built, is updated in place
+     * for just the states the row moved to before and after the
+     * change.
+     *
+     * <p>A solution computed before the change can be brought up to
+     * date with <tt>IncrementalValueIteration</tt>, passing it
+     * <tt>s</tt> as a changed state.
+     */
+    public void setTransitionRow(int s, int a, int targets[], double probs[]) {
+	if (s < 0 || s >= numStates)
+	    throw new IllegalArgumentException("no state " + s);
+	if (a < 0 || a >= numActions)
+	    throw new IllegalArgumentException("no action " + a);
+	if (targets.length != probs.length)
+	    throw new IllegalArgumentException("got " + targets.length
+					       + " targets but "
+					       + probs.length
+					       + " probabilities");
+	Map<Integer, Double> m = new TreeMap<Integer, Double>();
+	for (int i = 0; i < targets.length; i++) {
+	    if (targets[i] < 0 || targets[i] >= numStates)
+		throw new IllegalArgumentException("no state " + targets[i]);
+	    if (!(probs[i] >= 0.))
+		throw new IllegalArgumentException("Probabilities must be nonnegative, got "
+						   + probs[i]);
+	    Double old_val = m.get(targets[i]);
+	    m.put(targets[i], (old_val == null ? 0.0 : old_val) + probs[i]);
+	}
+	int size = m.size();
+	int row_target[] = new int[size];
+	double row_prob[] = new double[size];
+	double sum = 0.0;
+	int i = 0;
+	for (Map.Entry<Integer, Double> e : m.entrySet()) {
+	    row_target[i] = e.getKey();
+	    sum += row_prob[i] = e.getValue();
+	    i++;
+	}
+	if (sum <= 0.0)
+	    throw new IllegalArgumentException("State " + stateName[s]
+					       + " with action "
+					       + actionName[a]
+					       + " must have positive transition probability");
+	for (i = 0; i < size; i++)
+	    row_prob[i] /= sum;
+
+	if (nextState != null) {
+	    nextState[s][a] = row_target;
+	    transProb[s][a] = row_prob;
+	}
+	if (transitions == null)
+	    return;		// built from the arrays above when needed
+
+	TransitionStore t = transitions;
+	int oldStart = t.rowStart(s, a), oldEnd = t.rowEnd(s, a);
+	int changed[] = Arrays.copyOf(row_target, size + oldEnd - oldStart);
+	for (int k = oldStart; k < oldEnd; k++)
+	    changed[size + k - oldStart] = t.target(k);
+
+	PatchedTransitionStore patched = (t instanceof PatchedTransitionStore
+					  ? (PatchedTransitionStore) t
+					  : new PatchedTransitionStore(t));
+	if ((long) patched.base().numTransitions() + patched.numReplacedTransitions()
+	    + size > Integer.MAX_VALUE)	// out of indices
+	    patched = new PatchedTransitionStore(pack(patched, patched.base()));
+	patched = patched.withRow(s, a, row_target, row_prob);
+	TransitionStore base = patched.base();
+	if (patched.numReplacedTransitions() > Math.max(base.numTransitions(),
+							MIN_PATCH_TRANSITIONS))
+	    transitions = pack(patched, base);
+	else
+	    transitions = patched;
+	if (predecessors != null)
+	    predecessors.update(transitions, s, changed, changed.length);
+    }
+
+    /**
+     * Returns the index of the states that can move to each state.
+     * The index is built from <tt>transitions()</tt> on the first
+     * call, unless the constructor was asked to build it.
+     */
+    public PredecessorIndex predecessors() {
+	if (predecessors == null)
+	    predecessors = new PredecessorIndex(transitions());
+	return predecessors;
+    }
+
+    /** replaced rows are kept in a <tt>PatchedTransitionStore</tt>
+     * until they hold more transitions than this, or than the store
+     * they patch **/
+    private static final int MIN_PATCH_TRANSITIONS = 1 << 12;
+
+    /** Packs the transitions of <tt>patched</tt> into a new store of
+     * the kind of <tt>base</tt>, the store it patches. */
+    private static TransitionStore pack(PatchedTransitionStore patched,
+					TransitionStore base) {
+	if (base instanceof MappedTransitionStore
+	    || base instanceof OffHeapTransitionStore)
+	    return new OffHeapTransitionStore(patched);
+	if (base instanceof QuantizedTransitionStore) {
+	    try {
+		return new QuantizedTransitionStore(patched);
+	    } catch (IllegalArgumentException e) {
+		// too many distinct probabilities now
+	    }
+	}
+	return new CsrTransitionStore(patched);
     }
 
     private class Vector1d<T> {
@@ -254,6 +533,13 @@ public class Mdp {
 	return m.get(s).intValue();
     }
 
+    private static Map<String, Integer> arrayToMap(String a[]) {
+	Map<String, Integer> m = new HashMap<String, Integer>(2 * a.length);
+	for (int i = 0; i < a.length; i++)
+	    m.put(a[i], Integer.valueOf(i));
+	return m;
+    }
+
     private String[] mapToArray(Map<String, Integer> m) {
 	String a[] = new String[m.size()];
 	Iterator it = m.keySet().iterator();
@@ -0,0 +1,263 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * This class converts an MDP from the text format read by the
+ * <tt>Mdp</tt> constructor to the binary format of
+ * <tt>MdpBinaryFormat</tt> without ever holding its transitions on
+ * the heap, so MDPs far larger than the heap can be converted.  Only
+ * the names, the rewards, the row offsets and one row at a time are
+ * kept in memory; the transitions go through two temporary files in
+ * the directory of the binary file:
+ *
+ * <ol>
+ * <li>The text is parsed as <tt>MdpTextLoader</tt> parses it, and
+ *     each transition is spilled to the first file as it is read.
+ * <li>The spill is read once to count the transitions of each row.
+ * <li>The spill is read again and each transition is written to its
+ *     row in the second file, which is memory-mapped, so the
+ *     operating system rather than the heap holds it.
+ * <li>Each row is sorted, merged and normalized in place, exactly as
+ *     <tt>MdpTextLoader</tt> does it, and the rows are packed
+ *     together.
+ * <li>The binary file is written from the start, copying the targets
+ *     and probabilities from the second file in order.
+ * </ol>
+ *
+ * The file written is byte for byte the one that
+ * <tt>MdpBinaryFormat.write</tt> writes for the MDP that
+ * <tt>MdpTextLoader</tt> reads from the same text.
+ */
+public class MdpBinaryConverter {
+
+    /**
+     * Converts the MDP in the text file <tt>textFile</tt>, which is
+     * gunzipped first if its name ends with ".gz", to the binary file
+     * <tt>binaryFile</tt>.  Errors in the text are reported as by
+     * <tt>MdpTextLoader</tt>.
+     */
+    public static void convert(String textFile, String binaryFile)
+	throws FileNotFoundException, IOException {
+	Path path = Paths.get(binaryFile).toAbsolutePath();
+	String prefix = path.getFileName().toString();
+	Path spillPath = Files.createTempFile(path.getParent(), prefix, ".spill");
+	Path rowsPath = null;
+	try {
+	    // parse the text, spilling the transitions
+	    MdpTextLoader.NameTable states = new MdpTextLoader.NameTable();
+	    MdpTextLoader.NameTable actions = new MdpTextLoader.NameTable();
+	    SpillRecords records;
+	    try (FileChannel spill = FileChannel.open(spillPath,
+						      StandardOpenOption.WRITE)) {
+		records = new SpillRecords(spill);
+		try {
+		    MdpTextLoader.scan(textFile, new MdpTextLoader.LineParser(
+			textFile, states, actions, records));
+		} catch (UncheckedIOException e) {
+		    throw e.getCause();
+		}
+		records.out.flush();
+	    }
+	    if (records.startState < 0) {
+		String err = "No start state provided in " + textFile;
+		System.err.println(err);
+		throw new RuntimeException(err);
+	    }
+	    int numStates = states.size(), numActions = actions.size();
+	    if ((long) numStates * numActions >= Integer.MAX_VALUE)
+		throw new IOException(textFile + " has too many state-action pairs");
+	    if (records.spilled > Integer.MAX_VALUE)
+		throw new IOException(textFile + " has too many transitions");
+	    int numRows = numStates * numActions;
+	    int n = (int) records.spilled;
+
+	    // count the transitions of each row
+	    int rowOffset[] = new int[numRows + 1];
+	    try (FileChannel spill = FileChannel.open(spillPath,
+						      StandardOpenOption.READ)) {
+		MdpBinaryFormat.Input in = new MdpBinaryFormat.Input(spill, 0);
+		for (int k = 0; k < n; k++) {
+		    int s = in.getInt(), a = in.getInt();
+		    in.getInt();
+		    in.getDouble();
+		    rowOffset[s * numActions + a + 1]++;
+		}
+	    }
+	    int longest = 0;
+	    for (int r = 0; r < numRows; r++) {
+		longest = Math.max(longest, rowOffset[r + 1]);
+		rowOffset[r + 1] += rowOffset[r];
+	    }
+
+	    rowsPath = Files.createTempFile(path.getParent(), prefix, ".rows");
+	    try (FileChannel rowsChannel = FileChannel.open(rowsPath,
+							    StandardOpenOption.READ,
+							    StandardOpenOption.WRITE)) {
+		Rows rows = new Rows(rowsChannel, n);
+
+		// sort the transitions by row, keeping their order
+		// within each row
+		try (FileChannel spill = FileChannel.open(spillPath,
+							  StandardOpenOption.READ)) {
+		    MdpBinaryFormat.Input in = new MdpBinaryFormat.Input(spill, 0);
+		    int fill[] = Arrays.copyOf(rowOffset, numRows);
+		    for (int k = 0; k < n; k++) {
+			int s = in.getInt(), a = in.getInt();
+			int t = in.getInt();
+			double p = in.getDouble();
+			rows.put(fill[s * numActions + a]++, t, p);
+		    }
+		}
+		Files.delete(spillPath);
+
+		// sort each row by target, merge duplicates and normalize,
+		// packing the rows together
+		int target[] = new int[longest];
+		double prob[] = new double[longest];
+		MdpTextLoader.RowMerger merger = new MdpTextLoader.RowMerger();
+		int out = 0;
+		for (int s = 0; s < numStates; s++)
+		    for (int a = 0; a < numActions; a++) {
+			int r = s * numActions + a;
+			int begin = rowOffset[r], end = rowOffset[r + 1];
+			rowOffset[r] = out;
+			if (begin == end)
+			    throw MdpTextLoader.emptyRow(textFile, states.name(s),
+							 actions.name(a));
+			for (int k = begin; k < end; k++) {
+			    target[k - begin] = rows.target(k);
+			    prob[k - begin] = rows.prob(k);
+			}
+			int m = merger.merge(target, prob, 0, end - begin, 0);
+			if (!MdpTextLoader.normalize(prob, 0, m))
+			    throw MdpTextLoader.zeroRow(textFile, states.name(s),
+							actions.name(a));
+			for (int i = 0; i < m; i++)
+			    rows.put(out++, target[i], prob[i]);
+		    }
+		rowOffset[numRows] = out;
+
+		double reward[] = new double[numStates];
+		for (int i = 0; i < records.numRewards; i++)
+		    reward[records.rewardState[i]] = records.rewardValue[i];
+		write(path, numStates, numActions, records.startState, reward,
+		      rowOffset, rows, states, actions);
+	    }
+	} finally {
+	    Files.deleteIfExists(spillPath);
+	    if (rowsPath != null)
+		Files.deleteIfExists(rowsPath);
+	}
+    }
+
+    // private stuff
+
+    /** Writes the binary file, taking the packed rows from
+     * <tt>rows</tt>. */
+    private static void write(Path path, int numStates, int numActions,
+			      int startState, double reward[],
+			      int rowOffset[], Rows rows,
+			      MdpTextLoader.NameTable states,
+			      MdpTextLoader.NameTable actions)
+	throws IOException {
+	int numTransitions = rowOffset[rowOffset.length - 1];
+	try (FileChannel ch = FileChannel.open(path,
+					       StandardOpenOption.CREATE,
+					       StandardOpenOption.TRUNCATE_EXISTING,
+					       StandardOpenOption.WRITE)) {
+	    MdpBinaryFormat.Output out = new MdpBinaryFormat.Output(ch);
+	    long pos[] = MdpBinaryFormat.writeHeader(out, numStates, numActions,
+						     startState, numTransitions);
+	    for (int s = 0; s < numStates; s++)
+		out.putDouble(reward[s]);
+	    out.padTo(pos[1]);
+	    for (int offset : rowOffset)
+		out.putInt(offset);
+	    out.padTo(pos[2]);
+	    for (int k = 0; k < numTransitions; k++)
+		out.putInt(rows.target(k));
+	    out.padTo(pos[3]);
+	    for (int k = 0; k < numTransitions; k++)
+		out.putDouble(rows.prob(k));
+	    out.padTo(pos[4]);
+	    for (int s = 0; s < numStates; s++)
+		out.putString(states.name(s));
+	    for (int a = 0; a < numActions; a++)
+		out.putString(actions.name(a));
+	    out.flush();
+	}
+    }
+
+    /**
+     * The records of a parse whose transitions are written to a spill
+     * file, each as three ints and a double, instead of being kept.
+     */
+    private static class SpillRecords extends MdpTextLoader.Records {
+	private MdpBinaryFormat.Output out;
+	private long spilled = 0;
+
+	private SpillRecords(FileChannel spill) {
+	    out = new MdpBinaryFormat.Output(spill);
+	}
+
+	void addTransition(int s, int a, int t, double p) {
+	    try {
+		out.putInt(s);
+		out.putInt(a);
+		out.putInt(t);
+		out.putDouble(p);
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    spilled++;
+	}
+    }
+
+    /**
+     * The targets and probabilities of <tt>n</tt> transitions in a
+     * memory-mapped file, in chunks of
+     * <tt>2^OffHeapTransitionStore.CHUNK_SHIFT</tt> elements so that
+     * no buffer is over 2GB.
+     */
+    private static class Rows {
+	private static final int SHIFT = OffHeapTransitionStore.CHUNK_SHIFT;
+	private static final int MASK = (1 << SHIFT) - 1;
+	private IntBuffer target[];
+	private DoubleBuffer prob[];
+
+	private Rows(FileChannel ch, int n) throws IOException {
+	    int chunks = (int) (((long) n + MASK) >>> SHIFT);
+	    long probPos = MdpBinaryFormat.align(4L * n);
+	    target = new IntBuffer[chunks];
+	    prob = new DoubleBuffer[chunks];
+	    for (int c = 0; c < chunks; c++) {
+		long first = (long) c << SHIFT;
+		long length = Math.min(1L << SHIFT, n - first);
+		target[c] = map(ch, 4 * first, 4 * length).asIntBuffer();
+		prob[c] = map(ch, probPos + 8 * first, 8 * length).asDoubleBuffer();
+	    }
+	}
+
+	private int target(int k) {
+	    return target[k >>> SHIFT].get(k & MASK);
+	}
+
+	private double prob(int k) {
+	    return prob[k >>> SHIFT].get(k & MASK);
+	}
+
+	private void put(int k, int t, double p) {
+	    target[k >>> SHIFT].put(k & MASK, t);
+	    prob[k >>> SHIFT].put(k & MASK, p);
+	}
+
+	private static ByteBuffer map(FileChannel ch, long pos, long size)
+	    throws IOException {
+	    return ch.map(FileChannel.MapMode.READ_WRITE, pos, size)
+		.order(ByteOrder.LITTLE_ENDIAN);
+	}
+    }
+}
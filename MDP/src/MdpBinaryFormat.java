@@ -0,0 +1,464 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * This class reads and writes MDPs in a compact binary format that
+ * can be loaded by memory-mapping the file, with no parsing of the
+ * transitions at all.  All values are little-endian, and every
+ * section starts at a multiple of 8 bytes:
+ *
+ * <pre>
+ *   header      magic "MDPB", version, numStates, numActions,
+ *               startState, 0 (six ints), numTransitions (long),
+ *               and the file offsets of the five sections (longs)
+ *   reward      numStates doubles
+ *   rowOffset   numStates*numActions+1 ints
+ *   target      numTransitions ints
+ *   prob        numTransitions doubles
+ *   names       for each state name and then each action name: its
+ *               length in bytes (int) and its UTF-8 bytes
+ * </pre>
+ *
+ * The transition sections are the arrays of a
+ * <tt>CsrTransitionStore</tt>.  The <tt>main</tt> of this class
+ * converts an MDP from the text format read by the <tt>Mdp</tt>
+ * constructor (gzipped or not) to this format.
+ */
+public class MdpBinaryFormat {
+
+    /** "MDPB" read as a little-endian int **/
+    public static final int MAGIC = 0x4250444d;
+
+    /** the version of the format written by this class **/
+    public static final int VERSION = 1;
+
+    /** the suffix used for files in this format **/
+    public static final String SUFFIX = ".mdpb";
+
+    static final int HEADER_BYTES = 6 * 4 + 8 + 5 * 8;
+
+    /** how far the probabilities of a row may sum from 1 in a file
+     * that is verified **/
+    public static final double ROW_SUM_TOLERANCE = 1e-9;
+
+    /** the most doubles read from one mapping of the reward section **/
+    private static final int MAX_MAPPED_DOUBLES = 1 << 27;
+
+    /**
+     * Writes <tt>mdp</tt> to the file <tt>filename</tt> in the binary
+     * format.  The transitions are taken from
+     * <tt>mdp.transitions()</tt>.
+     */
+    public static void write(Mdp mdp, String filename) throws IOException {
+	TransitionStore t = mdp.transitions();
+	long numTransitions = t.numTransitions();
+
+	try (FileChannel ch = FileChannel.open(Paths.get(filename),
+					       StandardOpenOption.CREATE,
+					       StandardOpenOption.TRUNCATE_EXISTING,
+					       StandardOpenOption.WRITE)) {
+	    Output out = new Output(ch);
+	    long pos[] = writeHeader(out, mdp.numStates, mdp.numActions,
+				     mdp.startState, numTransitions);
+	    long rowOffsetPos = pos[1], targetPos = pos[2], probPos = pos[3],
+		namesPos = pos[4];
+
+	    for (int s = 0; s < mdp.numStates; s++)
+		out.putDouble(mdp.reward[s]);
+	    out.padTo(rowOffsetPos);
+
+	    // the rows are renumbered from 0, as a store may leave gaps
+	    // between them (see PatchedTransitionStore)
+	    int k = 0;
+	    for (int s = 0; s < mdp.numStates; s++)
+		for (int a = 0; a < mdp.numActions; a++) {
+		    out.putInt(k);
+		    k += t.rowEnd(s, a) - t.rowStart(s, a);
+		}
+	    out.putInt(k);
+	    out.padTo(targetPos);
+
+	    for (int s = 0; s < mdp.numStates; s++)
+		for (int a = 0; a < mdp.numActions; a++) {
+		    int end = t.rowEnd(s, a);
+		    for (int j = t.rowStart(s, a); j < end; j++)
+			out.putInt(t.target(j));
+		}
+	    out.padTo(probPos);
+
+	    for (int s = 0; s < mdp.numStates; s++)
+		for (int a = 0; a < mdp.numActions; a++) {
+		    int end = t.rowEnd(s, a);
+		    for (int j = t.rowStart(s, a); j < end; j++)
+			out.putDouble(t.prob(j));
+		}
+	    out.padTo(namesPos);
+
+	    for (String name : mdp.stateName)
+		out.putString(name);
+	    for (String name : mdp.actionName)
+		out.putString(name);
+	    out.flush();
+	}
+    }
+
+    /**
+     * Reads an MDP written by <tt>write</tt>.  The transitions are
+     * memory-mapped rather than read, and are installed as the
+     * <tt>TransitionStore</tt> of the returned MDP, whose
+     * <tt>nextState</tt> and <tt>transProb</tt> fields are left null.
+     * The store is a <tt>MappedTransitionStore</tt>, or an
+     * <tt>OffHeapTransitionStore</tt> if a section is too large to map
+     * as a single buffer.  The file is checked as it is opened (see
+     * the two-argument <tt>read</tt>), and an <tt>IOException</tt> is
+     * thrown if it is truncated or corrupt.
+     */
+    public static Mdp read(String filename) throws IOException {
+	return read(filename, true);
+    }
+
+    /**
+     * Reads an MDP written by <tt>write</tt>, as the one-argument
+     * <tt>read</tt> does.  The header, and the positions and sizes of
+     * the sections against the size of the file, are always checked.
+     * If <tt>verify</tt> is true, the transitions are checked too:
+     * the row offsets must rise from 0 to the number of transitions,
+     * every target must be a state, every probability must be finite
+     * and nonnegative, and the probabilities of each state-action
+     * pair must be positive somewhere and sum to 1 within
+     * <tt>ROW_SUM_TOLERANCE</tt>, as the text loader leaves them.
+     * This reads the whole file, so for
+     * files known to be sound it can be skipped to open them
+     * without touching the transitions.
+     */
+    public static Mdp read(String filename, boolean verify) throws IOException {
+	try (FileChannel ch = FileChannel.open(Paths.get(filename),
+					       StandardOpenOption.READ)) {
+	    if (ch.size() < HEADER_BYTES)
+		throw new IOException(filename + " is not a binary MDP file");
+	    ByteBuffer header = map(ch, 0, HEADER_BYTES);
+	    if (header.getInt() != MAGIC)
+		throw new IOException(filename + " is not a binary MDP file");
+	    int version = header.getInt();
+	    if (version != VERSION)
+		throw new IOException(filename + " has unsupported version "
+				      + version);
+	    Mdp mdp = new Mdp();
+	    mdp.numStates = header.getInt();
+	    mdp.numActions = header.getInt();
+	    mdp.startState = header.getInt();
+	    header.getInt();
+	    long numTransitions = header.getLong();
+	    long rewardPos = header.getLong();
+	    long rowOffsetPos = header.getLong();
+	    long targetPos = header.getLong();
+	    long probPos = header.getLong();
+	    long namesPos = header.getLong();
+	    if (mdp.numStates <= 0 || mdp.numActions <= 0
+		|| (long) mdp.numStates * mdp.numActions >= Integer.MAX_VALUE
+		|| mdp.startState < 0 || mdp.startState >= mdp.numStates
+		|| numTransitions < 0 || numTransitions > Integer.MAX_VALUE)
+		throw new IOException(filename + " has a corrupt header");
+	    int numRows = mdp.numStates * mdp.numActions;
+	    long end = HEADER_BYTES;
+	    end = checkSection(filename, ch, "reward", rewardPos, 8L * mdp.numStates, end);
+	    end = checkSection(filename, ch, "row offset", rowOffsetPos, 4L * (numRows + 1), end);
+	    end = checkSection(filename, ch, "target", targetPos, 4L * numTransitions, end);
+	    end = checkSection(filename, ch, "probability", probPos, 8L * numTransitions, end);
+	    checkSection(filename, ch, "name", namesPos, 0, end);
+
+	    mdp.reward = new double[mdp.numStates];
+	    for (int from = 0; from < mdp.numStates; from += MAX_MAPPED_DOUBLES) {
+		int n = Math.min(MAX_MAPPED_DOUBLES, mdp.numStates - from);
+		map(ch, rewardPos + 8L * from, 8L * n).asDoubleBuffer().get(mdp.reward, from, n);
+	    }
+
+	    TransitionStore transitions;
+	    if (8L * numTransitions <= Integer.MAX_VALUE
+		&& 4L * (numRows + 1) <= Integer.MAX_VALUE) {
+		IntBuffer rowOffset =
+		    map(ch, rowOffsetPos, 4L * (numRows + 1)).asIntBuffer();
+		IntBuffer target =
+		    map(ch, targetPos, 4L * numTransitions).asIntBuffer();
+		DoubleBuffer prob =
+		    map(ch, probPos, 8L * numTransitions).asDoubleBuffer();
+		transitions = new MappedTransitionStore(mdp.numStates,
+							mdp.numActions,
+							rowOffset, target,
+							prob);
+	    } else
+		transitions = OffHeapTransitionStore.map(ch, mdp.numStates,
+							 mdp.numActions,
+							 numTransitions,
+							 rowOffsetPos,
+							 targetPos, probPos);
+
+	    Input names = new Input(ch, namesPos);
+	    mdp.stateName = new String[mdp.numStates];
+	    for (int s = 0; s < mdp.numStates; s++)
+		mdp.stateName[s] = getString(names);
+	    mdp.actionName = new String[mdp.numActions];
+	    for (int a = 0; a < mdp.numActions; a++)
+		mdp.actionName[a] = getString(names);
+
+	    if (verify)
+		verify(filename, transitions, (int) numTransitions, mdp);
+
+	    mdp.setTransitions(transitions);
+	    return mdp;
+	}
+    }
+
+    /**
+     * Converts an MDP file from the text format to the binary format
+     * with <tt>MdpBinaryConverter</tt>, which never holds the
+     * transitions on the heap.  The arguments are the name of the
+     * text file and the name of the binary file to write.
+     */
+    public static void main(String argv[]) throws IOException {
+	if (argv.length != 2) {
+	    System.err.println("arguments: <text mdp file> <binary mdp file>");
+	    return;
+	}
+	MdpBinaryConverter.convert(argv[0], argv[1]);
+    }
+
+    // the pieces below are shared with MdpBinaryConverter
+
+    /**
+     * Writes the header of a file with the given sizes to
+     * <tt>out</tt>, which must be at the start of the file, and
+     * returns the positions of the five sections, in order.
+     */
+    static long[] writeHeader(Output out, int numStates, int numActions,
+			      int startState, long numTransitions)
+	throws IOException {
+	long numRows = (long) numStates * numActions;
+	long pos[] = new long[5];
+	pos[0] = HEADER_BYTES;
+	pos[1] = align(pos[0] + 8L * numStates);
+	pos[2] = align(pos[1] + 4L * (numRows + 1));
+	pos[3] = align(pos[2] + 4L * numTransitions);
+	pos[4] = align(pos[3] + 8L * numTransitions);
+
+	out.putInt(MAGIC);
+	out.putInt(VERSION);
+	out.putInt(numStates);
+	out.putInt(numActions);
+	out.putInt(startState);
+	out.putInt(0);
+	out.putLong(numTransitions);
+	for (long p : pos)
+	    out.putLong(p);
+	return pos;
+    }
+
+    static long align(long pos) {
+	return (pos + 7) & ~7L;
+    }
+
+    // private stuff
+
+    private static ByteBuffer map(FileChannel ch, long pos, long size)
+	throws IOException {
+	if (size > Integer.MAX_VALUE)
+	    throw new IOException("section of " + size
+				  + " bytes is too large to map");
+	return ch.map(FileChannel.MapMode.READ_ONLY, pos, size)
+	    .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Checks that a section of <tt>size</tt> bytes at <tt>pos</tt>
+     * starts no earlier than <tt>end</tt>, where the previous one
+     * ends, and fits in the file, and returns where it ends.
+     */
+    private static long checkSection(String filename, FileChannel ch,
+				     String section, long pos, long size,
+				     long end) throws IOException {
+	if (pos < end || size > ch.size() - pos)
+	    throw new IOException(filename + " is truncated or corrupt: the "
+				  + section + " section does not fit in the file");
+	return pos + size;
+    }
+
+    /** Checks the transitions of a store read from <tt>filename</tt>,
+     * naming the states and actions of <tt>mdp</tt> in errors about
+     * rows. */
+    private static void verify(String filename, TransitionStore t,
+			       int numTransitions, Mdp mdp) throws IOException {
+	int numStates = t.numStates(), numActions = t.numActions();
+	int previous = 0;
+	if (t.rowStart(0, 0) != 0)
+	    throw new IOException(filename + " is corrupt: the first row does not start at 0");
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		int rowEnd = t.rowEnd(s, a);
+		if (rowEnd < previous || rowEnd > numTransitions)
+		    throw new IOException(filename + " is corrupt: bad row offset for state "
+					  + s + " and action " + a);
+		previous = rowEnd;
+	    }
+	if (previous != numTransitions)
+	    throw new IOException(filename + " is corrupt: the rows hold " + previous
+				  + " transitions, not " + numTransitions);
+	for (int k = 0; k < numTransitions; k++) {
+	    int target = t.target(k);
+	    double p = t.prob(k);
+	    if (target < 0 || target >= numStates || !(p >= 0) || Double.isInfinite(p))
+		throw new IOException(filename + " is corrupt: bad transition " + k);
+	}
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		int start = t.rowStart(s, a), end = t.rowEnd(s, a);
+		if (start == end)
+		    throw new IOException(rowError(filename, mdp, s, a,
+						   " did not have any transitions"));
+		double sum = 0.0;
+		for (int k = start; k < end; k++)
+		    sum += t.prob(k);
+		if (sum <= 0.0)
+		    throw new IOException(rowError(filename, mdp, s, a,
+						   " must have positive transition probability"));
+		if (Math.abs(sum - 1.0) > ROW_SUM_TOLERANCE)
+		    throw new IOException(rowError(filename, mdp, s, a,
+						   " has transition probabilities summing to "
+						   + sum));
+	    }
+    }
+
+    /** Returns the message of an error in the row of state <tt>s</tt>
+     * and action <tt>a</tt>, worded as <tt>MdpTextLoader</tt> words
+     * its own. */
+    private static String rowError(String filename, Mdp mdp, int s, int a,
+				   String problem) {
+	return "State " + mdp.stateName[s] + " with action " + mdp.actionName[a]
+	    + problem + " in file " + filename;
+    }
+
+    private static String getString(Input in) throws IOException {
+	int length = in.getInt();
+	if (length < 0 || length > in.remaining())
+	    throw new IOException("binary MDP file has a corrupt name");
+	byte bytes[] = new byte[length];
+	in.get(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // the reader and writer below are shared with MdpBinaryConverter
+
+    /** a little-endian reader of a file from a given position, for
+     * sections that may be too large to map **/
+    static class Input {
+	private FileChannel ch;
+	private ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20)
+	    .order(ByteOrder.LITTLE_ENDIAN);
+	private long pos;
+
+	Input(FileChannel ch, long pos) {
+	    this.ch = ch;
+	    this.pos = pos;
+	    buf.limit(0);
+	}
+
+	private void ensure(int n) throws IOException {
+	    if (buf.remaining() >= n)
+		return;
+	    buf.compact();
+	    while (buf.position() < n) {
+		int read = ch.read(buf, pos);
+		if (read < 0)
+		    throw new EOFException("unexpected end of file at byte " + pos);
+		pos += read;
+	    }
+	    buf.flip();
+	}
+
+	int getInt() throws IOException {
+	    ensure(4);
+	    return buf.getInt();
+	}
+
+	double getDouble() throws IOException {
+	    ensure(8);
+	    return buf.getDouble();
+	}
+
+	/** Returns the number of bytes left to read in the file. */
+	long remaining() throws IOException {
+	    return ch.size() - pos + buf.remaining();
+	}
+
+	void get(byte bytes[]) throws IOException {
+	    for (int i = 0; i < bytes.length; ) {
+		ensure(1);
+		int n = Math.min(buf.remaining(), bytes.length - i);
+		buf.get(bytes, i, n);
+		i += n;
+	    }
+	}
+    }
+
+    /** a little-endian writer that keeps track of its position **/
+    static class Output {
+	private FileChannel ch;
+	private ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20)
+	    .order(ByteOrder.LITTLE_ENDIAN);
+	private long pos = 0;
+
+	Output(FileChannel ch) {
+	    this.ch = ch;
+	}
+
+	private void ensure(int n) throws IOException {
+	    if (buf.remaining() < n)
+		flush();
+	}
+
+	void putInt(int v) throws IOException {
+	    ensure(4);
+	    buf.putInt(v);
+	    pos += 4;
+	}
+
+	void putLong(long v) throws IOException {
+	    ensure(8);
+	    buf.putLong(v);
+	    pos += 8;
+	}
+
+	void putDouble(double v) throws IOException {
+	    ensure(8);
+	    buf.putDouble(v);
+	    pos += 8;
+	}
+
+	void putString(String s) throws IOException {
+	    byte bytes[] = s.getBytes(StandardCharsets.UTF_8);
+	    putInt(bytes.length);
+	    for (byte b : bytes) {
+		ensure(1);
+		buf.put(b);
+		pos++;
+	    }
+	}
+
+	void padTo(long target) throws IOException {
+	    while (pos < target) {
+		ensure(1);
+		buf.put((byte) 0);
+		pos++;
+	    }
+	}
+
+	void flush() throws IOException {
+	    buf.flip();
+	    while (buf.hasRemaining())
+		ch.write(buf);
+	    buf.clear();
+	}
+    }
+}
@@ -0,0 +1,570 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class reads an MDP from a data file in exactly the format read
+ * by the <tt>Mdp</tt> constructor, but without creating objects for
+ * the tokens it reads.  The file is scanned a buffer of characters at
+ * a time; numbers are converted straight from the buffer, state and
+ * action names are interned into open-addressing tables that only
+ * create a <tt>String</tt> the first time a name is seen, and the
+ * transitions are collected in growable primitive arrays and then
+ * sorted into a <tt>CsrTransitionStore</tt>.  State and action ids
+ * are assigned in order of first appearance, and duplicate
+ * transitions are merged and rows normalized in the same order as
+ * the constructor does, so the resulting MDP is identical to the one
+ * the constructor reads, except that its <tt>nextState</tt> and
+ * <tt>transProb</tt> fields are left null.
+ */
+public class MdpTextLoader {
+
+    /**
+     * Reads the MDP in <tt>filename</tt>, which is gunzipped first if
+     * its name ends with ".gz".
+     */
+    public static Mdp load(String filename)
+	throws FileNotFoundException, IOException {
+	NameTable states = new NameTable();
+	NameTable actions = new NameTable();
+	Records records = new Records();
+	scan(filename, new LineParser(filename, states, actions, records));
+	return build(filename, states, actions, records);
+    }
+
+    // the pieces below are shared with ParallelMdpLoader and
+    // MdpBinaryConverter
+
+    /** Feeds the lines of <tt>filename</tt> to <tt>parser</tt> in
+     * order. */
+    static void scan(String filename, LineParser parser)
+	throws FileNotFoundException, IOException {
+	try (Reader in = open(filename)) {
+	    char buf[] = new char[1 << 16];
+	    int len = 0;
+	    int lineNumber = 0;
+	    boolean skipNewline = false;
+	    while (true) {
+		if (len == buf.length)
+		    buf = Arrays.copyOf(buf, 2 * buf.length);
+		int n = in.read(buf, len, buf.length - len);
+		if (n < 0)
+		    break;
+		int end = len + n;
+		int start = 0;
+		for (int i = len; i < end; i++) {
+		    char c = buf[i];
+		    if (c == '\n' || c == '\r') {
+			if (c == '\n' && skipNewline && i == start) {
+			    // second half of a "\r\n" split across lines
+			    start = i + 1;
+			    skipNewline = false;
+			    continue;
+			}
+			parser.parseLine(buf, start, i, ++lineNumber);
+			skipNewline = (c == '\r');
+			if (skipNewline && i + 1 < end && buf[i + 1] == '\n') {
+			    i++;
+			    skipNewline = false;
+			}
+			start = i + 1;
+		    } else {
+			skipNewline = false;
+		    }
+		}
+		len = end - start;
+		System.arraycopy(buf, start, buf, 0, len);
+	    }
+	    if (len > 0)
+		parser.parseLine(buf, 0, len, ++lineNumber);
+	}
+    }
+
+    static Reader open(String filename) throws FileNotFoundException, IOException {
+	try {
+	    if (filename.endsWith(".gz"))
+		return new InputStreamReader(
+			   new GZIPInputStream(
+			       new FileInputStream(filename), 1 << 16));
+	    else
+		return new FileReader(filename);
+	} catch (FileNotFoundException e) {
+	    System.err.print("File "+filename+" not found.\n");
+	    throw e;
+	}
+    }
+
+    /**
+     * An open-addressing table assigning consecutive ids to names in
+     * the order in which they are first interned.  The characters of
+     * all of the names are kept in one array.
+     */
+    static class NameTable {
+	private char chars[] = new char[1 << 12];
+	private int numChars = 0;
+	private int start[] = new int[64];
+	private int length[] = new int[64];
+	private int hash[] = new int[64];
+	private String name[] = new String[64];
+	private int size = 0;
+
+	/** slot[i] is 1 + the id of the name in slot i, or 0 **/
+	private int slot[] = new int[128];
+
+	int size() {
+	    return size;
+	}
+
+	/** Returns the id of the name <tt>buf[from..to-1]</tt>. */
+	int intern(char buf[], int from, int to) {
+	    int h = 0;
+	    for (int i = from; i < to; i++)
+		h = 31 * h + buf[i];
+	    int mask = slot.length - 1;
+	    for (int i = mix(h) & mask; ; i = (i + 1) & mask) {
+		int id = slot[i] - 1;
+		if (id < 0) {
+		    id = add(buf, from, to, h);
+		    slot[i] = id + 1;
+		    if (2 * size > slot.length)
+			rehash();
+		    return id;
+		}
+		if (hash[id] == h && equals(id, buf, from, to))
+		    return id;
+	    }
+	}
+
+	/** Returns the id of the name with id <tt>id</tt> in table
+	 * <tt>other</tt>, interning it into this table if needed. */
+	int intern(NameTable other, int id) {
+	    return intern(other.chars, other.start[id],
+			  other.start[id] + other.length[id]);
+	}
+
+	/** Returns the name with the given id. */
+	String name(int id) {
+	    if (name[id] == null)
+		name[id] = new String(chars, start[id], length[id]);
+	    return name[id];
+	}
+
+	/** Returns all of the names, indexed by id. */
+	String[] names() {
+	    String a[] = new String[size];
+	    for (int i = 0; i < size; i++)
+		a[i] = name(i);
+	    return a;
+	}
+
+	private boolean equals(int id, char buf[], int from, int to) {
+	    if (length[id] != to - from)
+		return false;
+	    int p = start[id];
+	    for (int i = from; i < to; i++)
+		if (chars[p++] != buf[i])
+		    return false;
+	    return true;
+	}
+
+	private int add(char buf[], int from, int to, int h) {
+	    int len = to - from;
+	    if (numChars + len > chars.length)
+		chars = Arrays.copyOf(chars, Math.max(2 * chars.length, numChars + len));
+	    System.arraycopy(buf, from, chars, numChars, len);
+	    if (size == start.length) {
+		start = Arrays.copyOf(start, 2 * size);
+		length = Arrays.copyOf(length, 2 * size);
+		hash = Arrays.copyOf(hash, 2 * size);
+		name = Arrays.copyOf(name, 2 * size);
+	    }
+	    start[size] = numChars;
+	    length[size] = len;
+	    hash[size] = h;
+	    numChars += len;
+	    return size++;
+	}
+
+	private void rehash() {
+	    slot = new int[2 * slot.length];
+	    int mask = slot.length - 1;
+	    for (int id = 0; id < size; id++) {
+		int i = mix(hash[id]) & mask;
+		while (slot[i] != 0)
+		    i = (i + 1) & mask;
+		slot[i] = id + 1;
+	    }
+	}
+
+	private static int mix(int h) {
+	    h *= 0x9e3779b9;
+	    return h ^ (h >>> 16);
+	}
+    }
+
+    /**
+     * The contents of a run of lines: the transitions and rewards in
+     * the order in which they appear, and the last start state seen,
+     * all in terms of the ids of some pair of name tables.
+     */
+    static class Records {
+	int src[] = new int[1024], act[] = new int[1024], tgt[] = new int[1024];
+	double prob[] = new double[1024];
+	int numTransitions = 0;
+
+	int rewardState[] = new int[64];
+	double rewardValue[] = new double[64];
+	int numRewards = 0;
+
+	int startState = -1;
+
+	void addTransition(int s, int a, int t, double p) {
+	    if (numTransitions == src.length) {
+		int n = 2 * numTransitions;
+		src = Arrays.copyOf(src, n);
+		act = Arrays.copyOf(act, n);
+		tgt = Arrays.copyOf(tgt, n);
+		prob = Arrays.copyOf(prob, n);
+	    }
+	    src[numTransitions] = s;
+	    act[numTransitions] = a;
+	    tgt[numTransitions] = t;
+	    prob[numTransitions++] = p;
+	}
+
+	void addReward(int s, double r) {
+	    if (numRewards == rewardState.length) {
+		rewardState = Arrays.copyOf(rewardState, 2 * numRewards);
+		rewardValue = Arrays.copyOf(rewardValue, 2 * numRewards);
+	    }
+	    rewardState[numRewards] = s;
+	    rewardValue[numRewards++] = r;
+	}
+    }
+
+    /**
+     * Parses single lines into a <tt>Records</tt>, interning the names
+     * into the given tables.
+     */
+    static class LineParser {
+	private String filename;
+	private NameTable states, actions;
+	private Records records;
+	private int tokStart[] = new int[64], tokEnd[] = new int[64];
+
+	/** if set, errors are thrown without being printed first **/
+	boolean quiet = false;
+
+	LineParser(String filename, NameTable states, NameTable actions,
+		   Records records) {
+	    this.filename = filename;
+	    this.states = states;
+	    this.actions = actions;
+	    this.records = records;
+	}
+
+	/**
+	 * Parses the line in <tt>buf[from..to-1]</tt>, which is line
+	 * number <tt>lineNumber</tt> of the file (used in error
+	 * messages only).
+	 */
+	void parseLine(char buf[], int from, int to, int lineNumber) {
+	    // trim as String.trim does, then split on whitespace
+	    while (from < to && buf[from] <= ' ')
+		from++;
+	    while (to > from && buf[to - 1] <= ' ')
+		to--;
+	    if (from == to)
+		return;
+	    int n = 0;
+	    int i = from;
+	    while (i < to) {
+		if (n == tokStart.length) {
+		    tokStart = Arrays.copyOf(tokStart, 2 * n);
+		    tokEnd = Arrays.copyOf(tokEnd, 2 * n);
+		}
+		tokStart[n] = i;
+		while (i < to && !isSpace(buf[i]))
+		    i++;
+		tokEnd[n++] = i;
+		while (i < to && isSpace(buf[i]))
+		    i++;
+	    }
+
+	    if (n == 1) { // start state
+		records.startState = states.intern(buf, tokStart[0], tokEnd[0]);
+	    } else if (n == 2) { // reward function entry
+		int s = states.intern(buf, tokStart[0], tokEnd[0]);
+		double r = number(buf, 1, from, to, lineNumber);
+		records.addReward(s, r);
+	    } else if (n >= 4 && n % 2 == 0) { // transition prob. entry
+		int s = states.intern(buf, tokStart[0], tokEnd[0]);
+		int a = actions.intern(buf, tokStart[1], tokEnd[1]);
+		for (int j = 2; j < n; j += 2) {
+		    double p = number(buf, j + 1, from, to, lineNumber);
+		    if (p < 0.) {
+			String err = "Probabilities must be nonnegative in file " +
+			    filename + " at line " + lineNumber
+			    + ": " + new String(buf, from, to - from);
+			if (!quiet)
+			    System.err.println(err);
+			throw new RuntimeException(err);
+		    }
+		    int t = states.intern(buf, tokStart[j], tokEnd[j]);
+		    records.addTransition(s, a, t, p);
+		}
+	    } else {
+		String err = "Badly formatted data in " +
+		    filename + " at line " + lineNumber + ": "
+		    + new String(buf, from, to - from);
+		if (!quiet)
+		    System.err.println(err);
+		throw new RuntimeException(err);
+	    }
+	}
+
+	private double number(char buf[], int tok, int from, int to,
+			      int lineNumber) {
+	    try {
+		return parseDouble(buf, tokStart[tok], tokEnd[tok]);
+	    } catch (NumberFormatException e) {
+		if (!quiet)
+		    System.err.println("Expected number in file "+filename+
+				       " at line " + lineNumber
+				       + ": " + new String(buf, from, to - from));
+		throw e;
+	    }
+	}
+    }
+
+    /** the characters matched by the regular expression \s **/
+    private static boolean isSpace(char c) {
+	return c == ' ' || c == '\t' || c == '\n' || c == '\u000b'
+	    || c == '\f' || c == '\r';
+    }
+
+    private static final double POWERS_OF_TEN[] = {
+	1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+	1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Returns the same value as <tt>Double.parseDouble</tt> on the
+     * characters <tt>buf[from..to-1]</tt>.  Plain decimals with at
+     * most 15 significant digits are converted directly: the digits
+     * and the power of ten are then both exact doubles, so a single
+     * multiplication or division rounds correctly.  Anything else is
+     * handed to <tt>Double.parseDouble</tt>.
+     */
+    static double parseDouble(char buf[], int from, int to) {
+	int i = from;
+	boolean negative = false;
+	if (i < to && (buf[i] == '-' || buf[i] == '+'))
+	    negative = (buf[i++] == '-');
+	long mantissa = 0;
+	int digits = 0, scale = 0;
+	boolean any = false, point = false;
+	for (; i < to; i++) {
+	    char c = buf[i];
+	    if (c >= '0' && c <= '9') {
+		any = true;
+		if (mantissa != 0 || c != '0')
+		    digits++;
+		mantissa = 10 * mantissa + (c - '0');
+		if (point)
+		    scale--;
+		if (digits > 15)
+		    return slowParse(buf, from, to);
+	    } else if (c == '.' && !point) {
+		point = true;
+	    } else {
+		break;
+	    }
+	}
+	if (i < to && any && (buf[i] == 'e' || buf[i] == 'E')) {
+	    i++;
+	    boolean negativeExp = false;
+	    if (i < to && (buf[i] == '-' || buf[i] == '+'))
+		negativeExp = (buf[i++] == '-');
+	    int exp = 0;
+	    int expStart = i;
+	    for (; i < to && buf[i] >= '0' && buf[i] <= '9'; i++) {
+		exp = 10 * exp + (buf[i] - '0');
+		if (exp > 1000)
+		    return slowParse(buf, from, to);
+	    }
+	    if (i == expStart)
+		return slowParse(buf, from, to);
+	    scale += (negativeExp ? -exp : exp);
+	}
+	if (i != to || !any || scale < -22 || scale > 22)
+	    return slowParse(buf, from, to);
+	double v = (scale >= 0
+		    ? mantissa * POWERS_OF_TEN[scale]
+		    : mantissa / POWERS_OF_TEN[-scale]);
+	return (negative ? -v : v);
+    }
+
+    private static double slowParse(char buf[], int from, int to) {
+	return Double.parseDouble(new String(buf, from, to - from));
+    }
+
+    /**
+     * Builds the MDP described by the given tables and records: the
+     * transitions of each state-action pair are sorted by target
+     * state, duplicates are summed, and each row is normalized, as in
+     * the <tt>Mdp</tt> constructor.
+     */
+    static Mdp build(String filename, NameTable states, NameTable actions,
+		     Records records) {
+	if (records.startState < 0) {
+	    String err = "No start state provided in " + filename;
+	    System.err.println(err);
+	    throw new RuntimeException(err);
+	}
+
+	Mdp mdp = new Mdp();
+	mdp.startState = records.startState;
+	mdp.stateName = states.names();
+	mdp.numStates = mdp.stateName.length;
+	mdp.actionName = actions.names();
+	mdp.numActions = mdp.actionName.length;
+
+	mdp.reward = new double[mdp.numStates];
+	for (int i = 0; i < records.numRewards; i++)
+	    mdp.reward[records.rewardState[i]] = records.rewardValue[i];
+
+	// stable counting sort of the transitions by row
+	int numActions = mdp.numActions;
+	int numRows = mdp.numStates * numActions;
+	int n = records.numTransitions;
+	int rowOffset[] = new int[numRows + 1];
+	for (int i = 0; i < n; i++)
+	    rowOffset[records.src[i] * numActions + records.act[i] + 1]++;
+	for (int r = 0; r < numRows; r++)
+	    rowOffset[r + 1] += rowOffset[r];
+	int fill[] = Arrays.copyOf(rowOffset, numRows);
+	int target[] = new int[n];
+	double prob[] = new double[n];
+	for (int i = 0; i < n; i++) {
+	    int k = fill[records.src[i] * numActions + records.act[i]]++;
+	    target[k] = records.tgt[i];
+	    prob[k] = records.prob[i];
+	}
+
+	// sort each row by target, merge duplicates and normalize,
+	// compacting the arrays in place
+	int out = 0;
+	RowMerger merger = new RowMerger();
+	for (int s = 0; s < mdp.numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		int r = s * numActions + a;
+		int begin = rowOffset[r], end = rowOffset[r + 1];
+		rowOffset[r] = out;
+		if (begin == end)
+		    throw emptyRow(filename, mdp.stateName[s], mdp.actionName[a]);
+		int rowStart = out;
+		out = merger.merge(target, prob, begin, end, out);
+		if (!normalize(prob, rowStart, out))
+		    throw zeroRow(filename, mdp.stateName[s], mdp.actionName[a]);
+	    }
+	rowOffset[numRows] = out;
+	if (out < n) {
+	    target = Arrays.copyOf(target, out);
+	    prob = Arrays.copyOf(prob, out);
+	}
+
+	mdp.setTransitions(new CsrTransitionStore(mdp.numStates, numActions,
+						  rowOffset, target, prob));
+	return mdp;
+    }
+
+    /** Reports a state-action pair with no transitions, returning the
+     * exception to throw. */
+    static RuntimeException emptyRow(String filename, String state, String action) {
+	String err = "State " + state + " with action " + action +
+	    " did not have any transitions in file " + filename;
+	System.err.println(err);
+	return new RuntimeException(err);
+    }
+
+    /** Reports a state-action pair whose probabilities sum to zero,
+     * returning the exception to throw. */
+    static RuntimeException zeroRow(String filename, String state, String action) {
+	String err = "State " + state + " with action " + action +
+	    " must have positive transition probability in file " + filename;
+	System.err.println(err);
+	return new RuntimeException(err);
+    }
+
+    /**
+     * Divides <tt>prob[from..to-1]</tt> by its sum, returning false
+     * (and changing nothing) if the sum is not positive.
+     */
+    static boolean normalize(double prob[], int from, int to) {
+	double sum = 0.0;
+	for (int k = from; k < to; k++)
+	    sum += prob[k];
+	if (sum <= 0.0)
+	    return false;
+	for (int k = from; k < to; k++)
+	    prob[k] /= sum;
+	return true;
+    }
+
+    /**
+     * Sorts the transitions of single rows by target and merges
+     * duplicates, keeping its scratch space from one row to the next.
+     */
+    static class RowMerger {
+	private long keys[] = new long[0];
+
+	/**
+	 * Sorts the row in <tt>target[begin..end-1]</tt> and
+	 * <tt>prob[begin..end-1]</tt> stably by target, then writes it
+	 * back from position <tt>out</tt>, which must not be after
+	 * <tt>begin</tt>, with the probabilities of equal targets
+	 * summed in order.  Returns the position after the merged row.
+	 */
+	int merge(int target[], double prob[], int begin, int end, int out) {
+	    if (end - begin <= 32) {
+		// stable insertion sort
+		for (int i = begin + 1; i < end; i++) {
+		    int t = target[i];
+		    double p = prob[i];
+		    int j = i - 1;
+		    while (j >= begin && target[j] > t) {
+			target[j + 1] = target[j];
+			prob[j + 1] = prob[j];
+			j--;
+		    }
+		    target[j + 1] = t;
+		    prob[j + 1] = p;
+		}
+	    } else {
+		// sort (target, position) pairs, which is stable
+		if (keys.length < end - begin)
+		    keys = new long[end - begin];
+		for (int i = begin; i < end; i++)
+		    keys[i - begin] = ((long) target[i] << 32) | (i - begin);
+		Arrays.sort(keys, 0, end - begin);
+		double row[] = Arrays.copyOfRange(prob, begin, end);
+		for (int i = begin; i < end; i++) {
+		    long key = keys[i - begin];
+		    target[i] = (int) (key >>> 32);
+		    prob[i] = row[(int) key];
+		}
+	    }
+	    int rowStart = out;
+	    for (int i = begin; i < end; i++) {
+		if (out > rowStart && target[out - 1] == target[i]) {
+		    prob[out - 1] += prob[i];
+		} else {
+		    target[out] = target[i];
+		    prob[out++] = 0.0 + prob[i];
+		}
+	    }
+	    return out;
+	}
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class keeps compressed sparse row transitions (see
+ * <tt>CsrTransitionStore</tt>) outside the Java heap, so that MDPs
+ * with billions of transitions can be solved without a heap to match
+ * and without the garbage collector ever scanning them.  A single
+ * buffer can hold at most 2GB, so each array is split into chunks of
+ * <tt>2^chunkShift</tt> elements, each a separate buffer: either a
+ * view of a memory-mapped file written by <tt>MdpBinaryFormat</tt>
+ * (see <tt>map</tt>), which the operating system pages in as the
+ * solvers touch it, or a view of a temporary file, mapped the same
+ * way, filled by copying another store.  Copies are not direct
+ * buffers because those count against <tt>-XX:MaxDirectMemorySize</tt>,
+ * which defaults to the size of the heap; a mapped file is bounded
+ * only by the disk.
+ *
+ * <p>Transitions are numbered by <tt>int</tt>, as everywhere else in
+ * <tt>TransitionStore</tt>, so a store holds fewer than 2^31 of them;
+ * that is 24GB of targets and probabilities.
+ */
+public class OffHeapTransitionStore implements TransitionStore {
+
+    /** the default number of elements per chunk, as a power of two:
+     * 2^27 doubles take 1GB **/
+    public static final int CHUNK_SHIFT = 27;
+
+    private final int numStates, numActions, numTransitions;
+    private final int chunkShift, chunkMask;
+    private final IntBuffer rowOffset[];
+    private final IntBuffer target[];
+    private final DoubleBuffer prob[];
+
+    /**
+     * Copies the transitions of any other store into a mapped
+     * temporary file, in chunks of <tt>2^CHUNK_SHIFT</tt> elements.
+     */
+    public OffHeapTransitionStore(TransitionStore other) {
+	this(other, CHUNK_SHIFT);
+    }
+
+    /**
+     * Copies the transitions of any other store into a mapped
+     * temporary file, in chunks of <tt>2^chunkShift</tt> elements.
+     * The file is made in <tt>java.io.tmpdir</tt> and deleted as soon
+     * as it is mapped, so the operating system frees its blocks when
+     * the store is collected; an I/O error making it is thrown as an
+     * <tt>UncheckedIOException</tt>.
+     */
+    public OffHeapTransitionStore(TransitionStore other, int chunkShift) {
+	this.numStates = other.numStates();
+	this.numActions = other.numActions();
+	this.numTransitions = other.numTransitions();
+	this.chunkShift = checkShift(chunkShift);
+	this.chunkMask = (1 << chunkShift) - 1;
+	long numRows = (long) numStates * numActions;
+	rowOffset = new IntBuffer[numChunks(numRows + 1)];
+	target = new IntBuffer[numChunks(numTransitions)];
+	prob = new DoubleBuffer[target.length];
+	try {
+	    Path path = Files.createTempFile("transitions", ".tmp");
+	    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ,
+						   StandardOpenOption.WRITE)) {
+		long pos = 0;
+		for (int c = 0; c < rowOffset.length; c++) {
+		    long bytes = 4L * chunkLength(numRows + 1, c);
+		    rowOffset[c] = mapScratch(ch, pos, bytes).asIntBuffer();
+		    pos = MdpBinaryFormat.align(pos + bytes);
+		}
+		for (int c = 0; c < target.length; c++) {
+		    long bytes = 4L * chunkLength(numTransitions, c);
+		    target[c] = mapScratch(ch, pos, bytes).asIntBuffer();
+		    pos = MdpBinaryFormat.align(pos + bytes);
+		}
+		for (int c = 0; c < prob.length; c++) {
+		    long bytes = 8L * chunkLength(numTransitions, c);
+		    prob[c] = mapScratch(ch, pos, bytes).asDoubleBuffer();
+		    pos += bytes;
+		}
+	    } finally {
+		// the mappings outlive the file's name, except where the
+		// operating system will not delete a mapped file
+		try {
+		    Files.delete(path);
+		} catch (IOException e) {
+		    path.toFile().deleteOnExit();
+		}
+	    }
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+
+	int k = 0;
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		int row = s * numActions + a;
+		rowOffset[row >>> chunkShift].put(row & chunkMask, k);
+		int end = other.rowEnd(s, a);
+		for (int j = other.rowStart(s, a); j < end; j++) {
+		    target[k >>> chunkShift].put(k & chunkMask, other.target(j));
+		    prob[k >>> chunkShift].put(k & chunkMask, other.prob(j));
+		    k++;
+		}
+	    }
+	int last = numStates * numActions;
+	rowOffset[last >>> chunkShift].put(last & chunkMask, k);
+    }
+
+    private OffHeapTransitionStore(int numStates, int numActions, int numTransitions,
+				   int chunkShift, IntBuffer rowOffset[],
+				   IntBuffer target[], DoubleBuffer prob[]) {
+	this.numStates = numStates;
+	this.numActions = numActions;
+	this.numTransitions = numTransitions;
+	this.chunkShift = chunkShift;
+	this.chunkMask = (1 << chunkShift) - 1;
+	this.rowOffset = rowOffset;
+	this.target = target;
+	this.prob = prob;
+    }
+
+    /**
+     * Maps the transition sections of a file in the format of
+     * <tt>MdpBinaryFormat</tt>, which start at the given positions,
+     * in chunks of <tt>2^CHUNK_SHIFT</tt> elements.
+     */
+    public static OffHeapTransitionStore map(FileChannel ch, int numStates,
+					     int numActions, long numTransitions,
+					     long rowOffsetPos, long targetPos,
+					     long probPos)
+	throws IOException {
+	if (numTransitions > Integer.MAX_VALUE)
+	    throw new IOException(numTransitions + " transitions are more than a "
+				  + "TransitionStore can index");
+	int shift = CHUNK_SHIFT;
+	long numRows = (long) numStates * numActions;
+	IntBuffer rowOffset[] = new IntBuffer[numChunks(numRows + 1, shift)];
+	for (int c = 0; c < rowOffset.length; c++)
+	    rowOffset[c] = mapChunk(ch, rowOffsetPos, 4, c, numRows + 1, shift).asIntBuffer();
+	IntBuffer target[] = new IntBuffer[numChunks(numTransitions, shift)];
+	DoubleBuffer prob[] = new DoubleBuffer[target.length];
+	for (int c = 0; c < target.length; c++) {
+	    target[c] = mapChunk(ch, targetPos, 4, c, numTransitions, shift).asIntBuffer();
+	    prob[c] = mapChunk(ch, probPos, 8, c, numTransitions, shift).asDoubleBuffer();
+	}
+	return new OffHeapTransitionStore(numStates, numActions, (int) numTransitions,
+					  shift, rowOffset, target, prob);
+    }
+
+    public int numStates() {
+	return numStates;
+    }
+
+    public int numActions() {
+	return numActions;
+    }
+
+    public int numTransitions() {
+	return numTransitions;
+    }
+
+    public int rowStart(int s, int a) {
+	int row = s * numActions + a;
+	return rowOffset[row >>> chunkShift].get(row & chunkMask);
+    }
+
+    public int rowEnd(int s, int a) {
+	int row = s * numActions + a + 1;
+	return rowOffset[row >>> chunkShift].get(row & chunkMask);
+    }
+
+    public int target(int k) {
+	return target[k >>> chunkShift].get(k & chunkMask);
+    }
+
+    public double prob(int k) {
+	return prob[k >>> chunkShift].get(k & chunkMask);
+    }
+
+    public double expectedUtility(int s, int a, double utility[]) {
+	int start = rowStart(s, a), end = rowEnd(s, a);
+	if (start == end)
+	    return 0.0;
+	double sum = 0.0;
+	int c = start >>> chunkShift;
+	if (c == (end - 1) >>> chunkShift) {
+	    // the whole row is in one chunk
+	    IntBuffer t = target[c];
+	    DoubleBuffer p = prob[c];
+	    int base = c << chunkShift;
+	    for (int k = start - base; k < end - base; k++)
+		sum += p.get(k) * utility[t.get(k)];
+	} else
+	    for (int k = start; k < end; k++)
+		sum += prob(k) * utility[target(k)];
+	return sum;
+    }
+
+    /** Returns the number of bytes the transitions take outside the
+     * heap. */
+    public long memoryBytes() {
+	return 4L * ((long) numStates * numActions + 1) + 12L * numTransitions;
+    }
+
+    // private stuff
+
+    private int numChunks(long n) {
+	return numChunks(n, chunkShift);
+    }
+
+    private static int numChunks(long n, int shift) {
+	return (int) ((n + (1L << shift) - 1) >>> shift);
+    }
+
+    private int chunkLength(long n, int c) {
+	return (int) Math.min(1L << chunkShift, n - ((long) c << chunkShift));
+    }
+
+    private static int checkShift(int shift) {
+	if (shift < 1 || shift > 27)
+	    throw new IllegalArgumentException("chunk shift must be from 1 to 27, not " + shift);
+	return shift;
+    }
+
+    private static ByteBuffer mapScratch(FileChannel ch, long pos, long bytes)
+	throws IOException {
+	return ch.map(FileChannel.MapMode.READ_WRITE, pos, bytes)
+	    .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer mapChunk(FileChannel ch, long pos, int elementBytes,
+				       int c, long n, int shift)
+	throws IOException {
+	long first = (long) c << shift;
+	long length = Math.min(1L << shift, n - first);
+	return ch.map(FileChannel.MapMode.READ_ONLY, pos + first * elementBytes,
+		      length * elementBytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+/**
+ * This class reads an MDP data file, typically a gzipped one, with a
+ * pipeline of threads.  The calling thread inflates and decodes the
+ * file and cuts it into batches of whole lines; worker threads parse
+ * the batches with the parser of <tt>MdpTextLoader</tt>, each into
+ * its own name tables and records; and the calling thread merges the
+ * parsed batches in file order, translating each batch's name ids
+ * into global ones.  Because the batches are merged in order, and
+ * each batch numbers its names in order of first appearance, the
+ * global ids are exactly those the sequential loaders assign, and the
+ * resulting MDP is identical to the one <tt>MdpTextLoader</tt>
+ * returns.  Errors are reported for the first bad line in the file,
+ * with the same message as the sequential loaders give.
+ */
+public class ParallelMdpLoader {
+
+    /** the number of characters handed to a worker at a time **/
+    private static final int BATCH_CHARS = 1 << 20;
+
+    /**
+     * Reads the MDP in <tt>filename</tt> using one worker thread per
+     * processor beyond the first.
+     */
+    public static Mdp load(String filename)
+	throws FileNotFoundException, IOException {
+	return load(filename,
+		    Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Reads the MDP in <tt>filename</tt> using <tt>numThreads</tt>
+     * worker threads to parse.
+     */
+    public static Mdp load(String filename, int numThreads)
+	throws FileNotFoundException, IOException {
+	MdpTextLoader.NameTable states = new MdpTextLoader.NameTable();
+	MdpTextLoader.NameTable actions = new MdpTextLoader.NameTable();
+	MdpTextLoader.Records records = new MdpTextLoader.Records();
+	int linesBefore[] = new int[1];
+
+	ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+	ArrayDeque<Future<Batch>> pending = new ArrayDeque<Future<Batch>>();
+	try (Reader in = MdpTextLoader.open(filename)) {
+	    char carry[] = new char[0];
+	    int carryLen = 0;
+	    while (true) {
+		char buf[] = new char[Math.max(BATCH_CHARS, 2 * carryLen)];
+		System.arraycopy(carry, 0, buf, 0, carryLen);
+		int len = carryLen;
+		int n = 0;
+		while (len < buf.length && (n = in.read(buf, len, buf.length - len)) >= 0)
+		    len += n;
+		boolean last = (n < 0);
+		if (last && len == 0)
+		    break;
+
+		// cut after the last line terminator, preferring "\n" so
+		// that a "\r\n" pair is not split between batches
+		int cut = len;
+		if (!last) {
+		    cut = lastIndexOf(buf, len, '\n');
+		    if (cut < 0)
+			cut = lastIndexOf(buf, len, '\r');
+		    cut++;
+		}
+		if (cut == 0) {
+		    // no complete line yet; read more before cutting
+		    carry = buf;
+		    carryLen = len;
+		    continue;
+		}
+		carryLen = len - cut;
+		carry = new char[carryLen];
+		System.arraycopy(buf, cut, carry, 0, carryLen);
+
+		pending.add(workers.submit(new Batch(filename, buf, cut)));
+		while (pending.size() > 2 * numThreads)
+		    merge(pending.poll(), filename, states, actions, records, linesBefore);
+		if (last)
+		    break;
+	    }
+	    while (!pending.isEmpty())
+		merge(pending.poll(), filename, states, actions, records, linesBefore);
+	} finally {
+	    workers.shutdownNow();
+	}
+
+	return MdpTextLoader.build(filename, states, actions, records);
+    }
+
+    // private stuff
+
+    private static int lastIndexOf(char buf[], int len, char c) {
+	for (int i = len - 1; i >= 0; i--)
+	    if (buf[i] == c)
+		return i;
+	return -1;
+    }
+
+    /** A run of whole lines, and what parsing it produced. */
+    private static class Batch implements Callable<Batch> {
+	private String filename;
+	private char buf[];
+	private int len;
+
+	private MdpTextLoader.NameTable states = new MdpTextLoader.NameTable();
+	private MdpTextLoader.NameTable actions = new MdpTextLoader.NameTable();
+	private MdpTextLoader.Records records = new MdpTextLoader.Records();
+	private int numLines = 0;
+
+	/** the line that could not be parsed, if any **/
+	private RuntimeException error = null;
+	private int errorFrom, errorTo;
+
+	private Batch(String filename, char buf[], int len) {
+	    this.filename = filename;
+	    this.buf = buf;
+	    this.len = len;
+	}
+
+	public Batch call() {
+	    MdpTextLoader.LineParser parser =
+		new MdpTextLoader.LineParser(filename, states, actions, records);
+	    parser.quiet = true;
+	    int start = 0;
+	    for (int i = 0; i <= len; i++) {
+		if (i < len && buf[i] != '\n' && buf[i] != '\r')
+		    continue;
+		if (i == len && start == len)
+		    break;
+		numLines++;
+		try {
+		    parser.parseLine(buf, start, i, numLines);
+		} catch (RuntimeException e) {
+		    error = e;
+		    errorFrom = start;
+		    errorTo = i;
+		    break;
+		}
+		if (i + 1 < len && buf[i] == '\r' && buf[i + 1] == '\n')
+		    i++;
+		start = i + 1;
+	    }
+	    if (error == null)
+		buf = null;
+	    return this;
+	}
+    }
+
+    /**
+     * Waits for a batch and merges it into the global tables and
+     * records.  If the batch contains a bad line, it is parsed again
+     * with its global line number, so that the exception thrown is
+     * exactly the one the sequential loaders throw.
+     */
+    private static void merge(Future<Batch> future, String filename,
+			      MdpTextLoader.NameTable states,
+			      MdpTextLoader.NameTable actions,
+			      MdpTextLoader.Records records,
+			      int linesBefore[]) throws IOException {
+	Batch b;
+	try {
+	    b = future.get();
+	} catch (InterruptedException e) {
+	    throw new InterruptedIOException("interrupted while loading "
+					     + filename);
+	} catch (ExecutionException e) {
+	    throw new IOException("error loading " + filename, e.getCause());
+	}
+
+	int stateId[] = new int[b.states.size()];
+	for (int i = 0; i < stateId.length; i++)
+	    stateId[i] = states.intern(b.states, i);
+	int actionId[] = new int[b.actions.size()];
+	for (int i = 0; i < actionId.length; i++)
+	    actionId[i] = actions.intern(b.actions, i);
+
+	MdpTextLoader.Records r = b.records;
+	for (int i = 0; i < r.numTransitions; i++)
+	    records.addTransition(stateId[r.src[i]], actionId[r.act[i]],
+				  stateId[r.tgt[i]], r.prob[i]);
+	for (int i = 0; i < r.numRewards; i++)
+	    records.addReward(stateId[r.rewardState[i]], r.rewardValue[i]);
+	if (r.startState >= 0)
+	    records.startState = stateId[r.startState];
+
+	if (b.error != null) {
+	    new MdpTextLoader.LineParser(filename, states, actions, records)
+		.parseLine(b.buf, b.errorFrom, b.errorTo,
+			   linesBefore[0] + b.numLines);
+	    throw b.error;	// not reached
+	}
+	linesBefore[0] += b.numLines;
+    }
+}
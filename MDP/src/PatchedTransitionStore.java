@@ -0,0 +1,313 @@
+import java.util.Arrays;
+
+/**
+ * This class is a copy-on-write overlay of another
+ * <tt>TransitionStore</tt>: it reads most rows from a base store,
+ * which it never changes, and the rows that have been replaced from
+ * arrays of its own.  Replacing a row with <tt>withRow</tt> takes time
+ * linear in the length of the row, whatever the kind or size of the
+ * base, and returns a new store; the old one, and any kernel, sampler
+ * or solver reading it, still sees the old row.  This is how
+ * <tt>Mdp.setTransitionRow</tt> edits MDPs whose transitions are
+ * memory-mapped or off the heap without copying them.
+ *
+ * <p>The stores made from one base by successive calls to
+ * <tt>withRow</tt> are versions sharing one set of replacement rows,
+ * appended one after another, and one table from each replaced row
+ * to its replacements, each tagged with the version that made it; a
+ * version reads the newest replacement no newer than itself.  Rows
+ * that were never replaced are marked in a bitset, so reading them
+ * costs one test more than reading the base.  The transitions of the
+ * replacement rows are numbered after those of the base, which must
+ * number its own from 0 up, as all of the stores here do; a replaced
+ * row leaves its old transitions behind, so <tt>numTransitions</tt>,
+ * which counts the live transitions only, is not a bound on the
+ * indices.  Copying the store (with, say, the <tt>CsrTransitionStore</tt>
+ * copy constructor) packs the live transitions again.
+ *
+ * <p>The versions share their tables without locking:
+ * <tt>withRow</tt> must not be called while another thread reads any
+ * version made from the same base.
+ */
+public class PatchedTransitionStore implements TransitionStore {
+
+    /**
+     * Makes an overlay of <tt>base</tt> with no rows replaced yet.
+     */
+    public PatchedTransitionStore(TransitionStore base) {
+	this.base = base;
+	this.numStates = base.numStates();
+	this.numActions = base.numActions();
+	this.baseTransitions = base.numTransitions();
+	this.numTransitions = baseTransitions;
+	this.shared = new Patches((long) numStates * numActions);
+	this.version = 0;
+	this.length = 0;
+    }
+
+    /**
+     * Returns a store with the transitions of this one, except that
+     * state <tt>s</tt> under action <tt>a</tt> moves to
+     * <tt>target[i]</tt> with probability <tt>prob[i]</tt>.  The
+     * arrays are copied, and not checked: the row should already be
+     * normalized, as <tt>Mdp.setTransitionRow</tt> leaves it.  This
+     * store is not changed.
+     */
+    public PatchedTransitionStore withRow(int s, int a, int target[], double prob[]) {
+	if (version != shared.latestVersion)
+	    return copy().withRow(s, a, target, prob);
+	if ((long) baseTransitions + length + target.length > Integer.MAX_VALUE)
+	    throw new IllegalStateException("too many replaced transitions; copy the store first");
+	int oldLength = rowEnd(s, a) - rowStart(s, a);
+	shared.add(s * numActions + a, target, prob, version + 1);
+	return new PatchedTransitionStore(this, numTransitions - oldLength + target.length);
+    }
+
+    /** Returns the store this one is an overlay of. */
+    public TransitionStore base() {
+	return base;
+    }
+
+    /**
+     * Returns the number of transitions held in replacement rows,
+     * including those of rows replaced again since.  Once this grows
+     * past the size of the base, copying the store costs no more than
+     * the edits that led to it.
+     */
+    public int numReplacedTransitions() {
+	return length;
+    }
+
+    /**
+     * Returns the rows this store has replaced, and so does not read
+     * from the base, each as <tt>s*numActions + a</tt>.  This takes
+     * time linear in the number of replacements.
+     */
+    public int[] replacedRows() {
+	int rows[] = new int[shared.numEntries];
+	int n = 0;
+	for (int e = 0; e < shared.numEntries; e++)
+	    if (entry(shared.entryRow[e]) == e)
+		rows[n++] = shared.entryRow[e];
+	return Arrays.copyOf(rows, n);
+    }
+
+    public int numStates() {
+	return numStates;
+    }
+
+    public int numActions() {
+	return numActions;
+    }
+
+    public int numTransitions() {
+	return numTransitions;
+    }
+
+    public int rowStart(int s, int a) {
+	int e = entry(s * numActions + a);
+	return (e < 0 ? base.rowStart(s, a) : baseTransitions + shared.entryStart[e]);
+    }
+
+    public int rowEnd(int s, int a) {
+	int e = entry(s * numActions + a);
+	return (e < 0 ? base.rowEnd(s, a) : baseTransitions + shared.entryEnd[e]);
+    }
+
+    public int target(int k) {
+	return (k < baseTransitions ? base.target(k) : shared.target[k - baseTransitions]);
+    }
+
+    public double prob(int k) {
+	return (k < baseTransitions ? base.prob(k) : shared.prob[k - baseTransitions]);
+    }
+
+    /** Rows that were never replaced are summed by the base store. */
+    public double expectedUtility(int s, int a, double utility[]) {
+	int e = entry(s * numActions + a);
+	if (e < 0)
+	    return base.expectedUtility(s, a, utility);
+	int end = shared.entryEnd[e];
+	double sum = 0.0;
+	for (int k = shared.entryStart[e]; k < end; k++)
+	    sum += shared.prob[k] * utility[shared.target[k]];
+	return sum;
+    }
+
+    /** Rows that were never replaced are summed by the base store. */
+    public double expectedUtility(int s, int a, float utility[]) {
+	int e = entry(s * numActions + a);
+	if (e < 0)
+	    return base.expectedUtility(s, a, utility);
+	int end = shared.entryEnd[e];
+	double sum = 0.0;
+	for (int k = shared.entryStart[e]; k < end; k++)
+	    sum += shared.prob[k] * utility[shared.target[k]];
+	return sum;
+    }
+
+    // private stuff
+
+    private final TransitionStore base;
+    private final int numStates, numActions;
+
+    /** the number of transitions of the base, where the indices of
+     * the replacement rows start **/
+    private final int baseTransitions;
+
+    /** the number of live transitions of this version **/
+    private final int numTransitions;
+
+    /** the tables shared by all of the versions **/
+    private final Patches shared;
+
+    /** this version, counting the replaced rows since the base **/
+    private final int version;
+
+    /** the length of the replacement rows when this version was made **/
+    private final int length;
+
+    /** Makes the version after <tt>previous</tt>, whose replacement
+     * has just been added to the shared tables. */
+    private PatchedTransitionStore(PatchedTransitionStore previous, int numTransitions) {
+	this.base = previous.base;
+	this.numStates = previous.numStates;
+	this.numActions = previous.numActions;
+	this.baseTransitions = previous.baseTransitions;
+	this.numTransitions = numTransitions;
+	this.shared = previous.shared;
+	this.version = previous.version + 1;
+	this.length = shared.length;
+    }
+
+    /**
+     * Returns the replacement of row <tt>r</tt> seen by this version,
+     * or -1 if it reads the row from the base.
+     */
+    private int entry(int r) {
+	Patches p = shared;
+	if ((p.replaced[r >>> 6] & (1L << r)) == 0)
+	    return -1;
+	int e = p.newest(r);
+	while (e >= 0 && p.entryVersion[e] > version)
+	    e = p.entryPrevious[e];
+	return e;
+    }
+
+    /**
+     * Returns a store with the same transitions as this version, made
+     * from the base with tables of its own, for replacing rows of a
+     * version that is no longer the newest.
+     */
+    private PatchedTransitionStore copy() {
+	PatchedTransitionStore copy = new PatchedTransitionStore(base);
+	for (int r : replacedRows()) {
+	    int e = entry(r);
+	    int start = shared.entryStart[e], end = shared.entryEnd[e];
+	    copy = copy.withRow(r / numActions, r % numActions,
+				Arrays.copyOfRange(shared.target, start, end),
+				Arrays.copyOfRange(shared.prob, start, end));
+	}
+	return copy;
+    }
+
+    /**
+     * The replacement rows of all of the versions made from one base,
+     * and an open-addressing table from each replaced row to the
+     * newest of its replacements.  Each replacement is an entry
+     * pointing to the one it superseded.
+     */
+    private static class Patches {
+	/** bit <tt>r</tt> is set if row <tt>r</tt> was ever replaced **/
+	private long replaced[];
+
+	/** slot[i] is 1 + the newest entry of the row in slot i, or 0 **/
+	private int slot[] = new int[16];
+
+	/** the number of distinct rows in the table **/
+	private int numRows = 0;
+
+	private int entryRow[] = new int[8], entryStart[] = new int[8],
+	    entryEnd[] = new int[8], entryVersion[] = new int[8],
+	    entryPrevious[] = new int[8];
+	private int numEntries = 0;
+
+	private int target[] = new int[64];
+	private double prob[] = new double[64];
+	private int length = 0;
+
+	private int latestVersion = 0;
+
+	private Patches(long rows) {
+	    replaced = new long[(int) ((rows + 63) >>> 6)];
+	}
+
+	/** Returns the newest entry of row <tt>r</tt>, or -1. */
+	private int newest(int r) {
+	    int mask = slot.length - 1;
+	    for (int i = mix(r) & mask; ; i = (i + 1) & mask) {
+		int e = slot[i] - 1;
+		if (e < 0 || entryRow[e] == r)
+		    return e;
+	    }
+	}
+
+	/** Adds a replacement of row <tt>r</tt> made by version
+	 * <tt>version</tt>, which becomes the latest. */
+	private void add(int r, int rowTarget[], double rowProb[], int version) {
+	    int n = rowTarget.length;
+	    if (length + n > target.length) {
+		int capacity = Math.max(2 * target.length, length + n);
+		target = Arrays.copyOf(target, capacity);
+		prob = Arrays.copyOf(prob, capacity);
+	    }
+	    System.arraycopy(rowTarget, 0, target, length, n);
+	    System.arraycopy(rowProb, 0, prob, length, n);
+
+	    if (numEntries == entryRow.length) {
+		int capacity = 2 * numEntries;
+		entryRow = Arrays.copyOf(entryRow, capacity);
+		entryStart = Arrays.copyOf(entryStart, capacity);
+		entryEnd = Arrays.copyOf(entryEnd, capacity);
+		entryVersion = Arrays.copyOf(entryVersion, capacity);
+		entryPrevious = Arrays.copyOf(entryPrevious, capacity);
+	    }
+	    int e = numEntries++;
+	    entryRow[e] = r;
+	    entryStart[e] = length;
+	    entryEnd[e] = length + n;
+	    entryVersion[e] = version;
+	    entryPrevious[e] = newest(r);
+	    length += n;
+
+	    int mask = slot.length - 1;
+	    int i = mix(r) & mask;
+	    while (slot[i] != 0 && entryRow[slot[i] - 1] != r)
+		i = (i + 1) & mask;
+	    boolean fresh = (slot[i] == 0);
+	    slot[i] = e + 1;
+	    replaced[r >>> 6] |= 1L << r;
+	    latestVersion = version;
+	    if (fresh && 2 * ++numRows > slot.length)
+		rehash();
+	}
+
+	private void rehash() {
+	    int old[] = slot;
+	    slot = new int[2 * old.length];
+	    int mask = slot.length - 1;
+	    for (int e1 : old)
+		if (e1 != 0) {
+		    int i = mix(entryRow[e1 - 1]) & mask;
+		    while (slot[i] != 0)
+			i = (i + 1) & mask;
+		    slot[i] = e1;
+		}
+	}
+
+	private static int mix(int h) {
+	    h *= 0x9e3779b9;
+	    return h ^ (h >>> 16);
+	}
+    }
+}
@@ -15,6 +15,49 @@ public class PolicyEvaluation {
 
     /** the computed utility of each state under the given policy */
     public double utility[];
+
+    /** the number of sweeps (or, for the BiCGSTAB method, solver
+     * iterations) taken to compute <tt>utility</tt> **/
+    public int iterations;
+
+    /** the largest change in utility during the last sweep of the
+     * iterative method **/
+    public double residual;
+
+    /** Evaluates the policy by repeated sweeps until the utilities
+     * stop changing. **/
+    public static final int ITERATIVE = 0;
+
+    /** Evaluates the policy by dense LU factorization of
+     * <tt>I - discount*P</tt>. **/
+    public static final int DENSE_LU = 1;
+
+    /** Evaluates the policy by solving the sparse system
+     * <tt>(I - discount*P)U = R</tt> with BiCGSTAB. **/
+    public static final int BICGSTAB = 2;
+
+    /** Uses <tt>DENSE_LU</tt> for MDPs of at most
+     * <tt>DENSE_STATE_LIMIT</tt> states and <tt>BICGSTAB</tt> for
+     * larger ones. **/
+    public static final int AUTOMATIC = 3;
+
+    /** the largest MDP for which <tt>AUTOMATIC</tt> uses the dense
+     * solver.  The factorization takes time cubic in the number of
+     * states and BiCGSTAB about linear in the number of transitions,
+     * so dense LU only wins on tiny MDPs: on random MDPs with eight
+     * successors per action they break even near 64 states, and at
+     * 800 states BiCGSTAB is over 200 times faster. **/
+    public static final int DENSE_STATE_LIMIT = 64;
+
+    /** the most BiCGSTAB iterations taken before falling back to
+     * the iterative method **/
+    private static final int MAX_SOLVER_ITERATIONS = 10000;
+
+    /** the transitions of the MDP being evaluated **/
+    private TransitionStore transitions;
+
+    /** the listener told about each sweep or solver iteration, if any **/
+    private SolverListener listener;
     
     /**
      * The constructor for this class.  Computes the utility of policy
@@ -23,29 +66,120 @@ public class PolicyEvaluation {
      * <tt>utility</tt>.
      */
     public PolicyEvaluation(Mdp mdp, double discount, int pi[]) {    	
-	// your code here
+    	this(mdp, discount, pi, ITERATIVE);
+    }
+
+    /**
+     * Computes the utility of policy <tt>pi</tt> as the three-argument
+     * constructor does, using the given <tt>method</tt>, which is one
+     * of <tt>ITERATIVE</tt>, <tt>DENSE_LU</tt>, <tt>BICGSTAB</tt> or
+     * <tt>AUTOMATIC</tt>.  The linear solvers reach the accuracy of
+     * the iterative method, up to rounding, in a single solve.
+     */
+    public PolicyEvaluation(Mdp mdp, double discount, int pi[], int method) {
+    	this(mdp, discount, pi, method, null);
+    }
+
+    /**
+     * Computes the utility of policy <tt>pi</tt> as the four-argument
+     * constructor does, telling <tt>listener</tt> (if not null) about
+     * every sweep of the iterative method and every BiCGSTAB
+     * iteration.  The dense solver has no iterations to report.
+     */
+    public PolicyEvaluation(Mdp mdp, double discount, int pi[], int method,
+			    SolverListener listener) {
+    	this.listener = listener;
     	// Initializing the utility vector 
     	this.utility = new double[mdp.numStates];
-    	// Updating the utility vector through the standard policy evaluation method 
-    	policyEvaluationStandard (pi, mdp, discount);    	
+    	this.transitions = mdp.transitions();
+    	if (method == AUTOMATIC)
+    		method = (mdp.numStates <= DENSE_STATE_LIMIT ? DENSE_LU : BICGSTAB);
+    	switch (method) {
+    	case ITERATIVE:
+    		// Updating the utility vector through the standard policy evaluation method 
+    		policyEvaluationStandard (pi, mdp, discount, 0);
+    		break;
+    	case DENSE_LU:
+    		this.utility = new PolicyLinearSolver(this.transitions, mdp.reward, discount, pi).solveDense();
+    		break;
+    	case BICGSTAB:
+    		policyEvaluationKrylov (pi, mdp, discount);
+    		break;
+    	default:
+    		throw new IllegalArgumentException("unknown policy evaluation method " + method);
+    	}
+    }
+
+    /**
+     * Runs at most <tt>maxSweeps</tt> sweeps of the iterative method
+     * for policy <tt>pi</tt>, starting from the utilities
+     * <tt>initialUtility</tt> (which are not modified) instead of
+     * from zero, and stores the result in <tt>utility</tt>.  The
+     * sweeps stop early if the utilities converge; <tt>residual</tt>
+     * tells how far they got.  A <tt>maxSweeps</tt> of 0 sweeps until
+     * convergence.
+     */
+    public PolicyEvaluation(Mdp mdp, double discount, int pi[],
+			    double initialUtility[], int maxSweeps) {
+    	this(mdp, discount, pi, initialUtility, maxSweeps, null);
+    }
+
+    /**
+     * Runs the sweeps of the five-argument constructor, telling
+     * <tt>listener</tt> (if not null) about each of them.
+     */
+    public PolicyEvaluation(Mdp mdp, double discount, int pi[],
+			    double initialUtility[], int maxSweeps,
+			    SolverListener listener) {
+    	this.listener = listener;
+    	this.utility = initialUtility.clone();
+    	this.transitions = mdp.transitions();
+    	policyEvaluationStandard (pi, mdp, discount, maxSweeps);
+    }
+
+    /** This function evaluates the policy with BiCGSTAB.  The residual tolerance is what the
+     * iterative method achieves, raised where needed to a few units in the last place of the
+     * largest possible utility so that it is attainable in floating point.  If the solver does not
+     * reach it, the standard method finishes the job starting from the solver's result.
+     *
+     * @param policy
+     * @param mdp
+     * @param discount
+     */
+    private void policyEvaluationKrylov (int[] policy, Mdp mdp, double discount){
+    	double maxReward = 0;
+    	for (int currentState = 0; currentState < mdp.numStates; currentState++)
+    		maxReward = Math.max(maxReward, Math.abs(mdp.reward[currentState]));
+    	double tolerance = Math.max(Math.pow(10, -13) * (1 - discount),
+    				    64 * Math.ulp(maxReward / (1 - discount)));
+    	PolicyLinearSolver solver = new PolicyLinearSolver(this.transitions, mdp.reward, discount, policy);
+    	solver.listener = this.listener;
+    	this.utility = solver.solveBiCGStab(null, tolerance, MAX_SOLVER_ITERATIONS);
+    	this.iterations = solver.iterations;
+    	if (!solver.converged)
+    		policyEvaluationStandard (policy, mdp, discount, 0);
     }
     
     /** This function implements the standard policy evaluation. 
-     * The function keeps updating the policy estimates until the change in utility estimates becomes very small.  
+     * The function keeps updating the policy estimates until the change in utility estimates becomes very small,
+     * or until maxSweeps sweeps have been made if maxSweeps is positive.  
      * The function internally implements value iteration.
      * 
      * @param policy
      * @param utility
      * @param mdp
+     * @param maxSweeps
      * @return void
      */
-    private void policyEvaluationStandard (int[] policy, Mdp mdp, double discount){
+    private void policyEvaluationStandard (int[] policy, Mdp mdp, double discount, int maxSweeps){
     	// total number of states in the mdp 
     	int numStates = mdp.numStates, currentState, action;
     	// oldUtility stores the utility estimates of the previous iteration
     	double oldUtility[] = new double[numStates];
     	double delta = Math.pow(10, -13) * (1 - discount) / discount, difference, maxDifference;
+    	int sweeps = 0;
     	while (true){
+    		long start = (this.listener != null ? System.nanoTime() : 0);
     		// setting maximum difference = 0 
     		maxDifference = 0;
     		// Updating the old utility vector (utility vector from previous iteration) using the current utility calculated
@@ -64,10 +198,15 @@ public class PolicyEvaluation {
 	    			maxDifference = difference;
 	    		}	    		
 	    	}
+	    	this.iterations++;
+	    	this.residual = maxDifference;
+	    	sweeps++;
+	    	if (this.listener != null)
+	    		this.listener.iteration(SolverListener.POLICY_EVALUATION, sweeps, maxDifference, -1, System.nanoTime() - start);
 	    	// Checking if the maximum change in the current iteration over all the nodes 
 	    	// is smaller than the minimal required change. If, the change is very small,
 	    	// the loop is broken (we have arrived at the optimal policy).
-	    	if (delta > maxDifference){
+	    	if (delta > maxDifference || this.iterations == maxSweeps){
 	      		break;
 	    	}
     	}
@@ -83,16 +222,8 @@ public class PolicyEvaluation {
      * @return utilitySum
      */
     private double calculateUtilityAction (int currentState, Mdp mdp, int action){
-    	// Initializing the utility sum, for the current state
-    	double utilitySum = 0.0;
-    	// numDestinationStates is the total number of states reachable from the current state for the given action 
-    	int numDestinationStates = mdp.nextState[currentState][action].length, destinationStateCount, destinationStateIndex;
     	// Iterating over all the destination states to find the value of the 
     	// total utility obtained from the current state for the given action 
-    	for (destinationStateCount = 0; destinationStateCount < numDestinationStates; destinationStateCount++){
-    		destinationStateIndex = mdp.nextState[currentState][action][destinationStateCount];
-    		utilitySum += mdp.transProb[currentState][action][destinationStateCount] * this.utility[destinationStateIndex];
-    	}
-    	return utilitySum;
+    	return this.transitions.expectedUtility(currentState, action, this.utility);
     }
 }
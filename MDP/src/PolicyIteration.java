@@ -16,41 +16,160 @@ public class PolicyIteration {
 
     /** the computed optimal policy for the given MDP **/
     public int policy[];
+
+    /** the number of rounds of evaluation and improvement performed **/
+    public int iterations;
+
+    /** the action values of the utilities evaluated in the last
+     * round, if <tt>keepQValues</tt> was set in the options;
+     * otherwise null **/
+    public QTable qValues;
+
+    /** the utilities of <tt>policy</tt> evaluated in the last round **/
+    public double utility[];
+
     private int bestAction;
+    /** the kernel computing backups over the transitions of the MDP being solved, and
+     * the greedy actions it finds **/
+    private BellmanKernel kernel;
+    private int greedyAction[];
+
+    /**
+     * The settings accepted by the <tt>PolicyIteration</tt>
+     * constructor.  The defaults reproduce the behavior of the
+     * two-argument constructor.
+     */
+    public static class Options {
+
+	/** the method used to evaluate each policy; one of the method
+	 * constants of <tt>PolicyEvaluation</tt> **/
+	public int evaluationMethod = PolicyEvaluation.ITERATIVE;
+
+	/** if positive, each round runs only this many sweeps of the
+	 * iterative evaluation, starting from the utilities of the
+	 * previous round (modified policy iteration), and
+	 * <tt>evaluationMethod</tt> is ignored **/
+	public int evaluationSweeps = 0;
+
+	/** if not null, told the Bellman residual of the evaluated
+	 * utilities, the number of policy changes and the time taken
+	 * after every round, and passed on to each policy evaluation **/
+	public SolverListener listener = null;
+
+	/** if true, only the states reachable from the start state are
+	 * solved (see <tt>ReachabilityReduction</tt>); the others get
+	 * action 0 **/
+	public boolean reachableOnly = false;
+
+	/** if true, the action values of the evaluated utilities of
+	 * the last round are kept in <tt>qValues</tt> **/
+	public boolean keepQValues = false;
+
+	/** if true, the kept action values are stored in
+	 * <tt>float</tt> precision **/
+	public boolean compactQValues = false;
+
+	/** if not null, the policy the first round evaluates (which is
+	 * not modified) instead of a random one, such as that of a
+	 * <tt>PolicySnapshot</tt> of an earlier solve **/
+	public int initialPolicy[] = null;
+    }
+
     /**
      * The constructor for this class.  Computes the optimal policy
      * for the given <tt>mdp</tt> with given <tt>discount</tt> factor,
      * and stores the answer in <tt>policy</tt>.
      */
     public PolicyIteration(Mdp mdp, double discount) {
+    	this(mdp, discount, new Options());
+    }
 
-	// your code here    	
+    /**
+     * Computes the optimal policy as the two-argument constructor
+     * does, using the given <tt>options</tt>.  With modified policy
+     * iteration the utilities are only partly evaluated in each
+     * round, so an unchanged policy is not enough to stop: the last
+     * evaluation sweep must also have converged.
+     */
+    public PolicyIteration(Mdp mdp, double discount, Options options) {
+
+    	if (options.reachableOnly){
+    		// Solving the MDP restricted to the states reachable from the start state,
+    		// and mapping the policy back to all of the states
+    		ReachabilityReduction reduction = new ReachabilityReduction(mdp);
+    		solve(reduction.reduced, discount, options,
+    		      (options.initialPolicy != null ? reduction.restrictPolicy(options.initialPolicy) : null));
+    		this.policy = reduction.liftPolicy(this.policy);
+    		this.utility = reduction.liftUtility(this.utility);
+    	}
+    	else
+    		solve(mdp, discount, options, options.initialPolicy);
+    	if (options.keepQValues)
+    		this.qValues = new QTable(mdp, discount, this.utility, options.compactQValues);
+    }
+
+    /**
+     * This function computes the optimal policy of the given MDP with the given options,
+     * starting from the given policy (or from a random one if it is null).
+     * @param mdp
+     * @param discount
+     * @param options
+     * @param initialPolicy
+     */
+    private void solve (Mdp mdp, double discount, Options options, int initialPolicy[]){
     	// Stores the number of states in the Mdp 
     	int numStates = mdp.numStates, currentState, numActions = mdp.numActions;;    	
     	// Initializing the set of utilities
     	double utility[] = new double[numStates];
+    	this.utility = utility;
     	// Initializing the current policy
     	this.policy = new int[numStates];
+    	this.kernel = new BellmanKernel(mdp.transitions());
+    	this.greedyAction = new int[numStates];
     	// generator is used to generate random numbers for the assigning random initial policies to each of the states
     	Random generator = new Random();
-    	// Initializing the initial action at each of the states to a random action 
+    	// Initializing the initial action at each of the states to the given action, or to a random action 
+    	if (initialPolicy != null && initialPolicy.length != numStates)
+    		throw new IllegalArgumentException("initial policy has " + initialPolicy.length
+    						   + " states, expected " + numStates);
+    	if (initialPolicy != null) {
+    		for (currentState = 0; currentState < numStates; currentState++){
+    			if (initialPolicy[currentState] < 0 || initialPolicy[currentState] >= numActions)
+    				throw new IllegalArgumentException("initial action " + initialPolicy[currentState]
+    								   + " of state " + currentState + " is not between 0 and "
+    								   + (numActions - 1));
+    		}
+    	}
     	for (currentState = 0; currentState < numStates; currentState++){
-    		this.policy[currentState] =  Math.abs(generator.nextInt()) % numActions; 
+    		this.policy[currentState] = (initialPolicy != null
+    					     ? initialPolicy[currentState]
+    					     : Math.abs(generator.nextInt()) % numActions); 
     	}
     	// Initializing the unchanged variable 
     	boolean unchanged;
     	// Looping till there is no change in the policy
     	double currentUtility, bestUtility;
+    	double delta = Math.pow(10, -13) * (1 - discount) / discount;
+    	boolean modified = (options.evaluationSweeps > 0);
+    	SolverListener listener = options.listener;
+    	int policyChanges;
+    	double bellmanResidual;
     	while (true){
+    		long start = (listener != null ? System.nanoTime() : 0);
+    		this.iterations++;
     		// Initially the value of unchanged is set to be true, since there has been no change detected
     		unchanged = true;
     		// Evaluating the current utilities using the current policy
-    		PolicyEvaluation policyEvaluation = new PolicyEvaluation (mdp, discount, this.policy);
+    		PolicyEvaluation policyEvaluation = (modified
+    				? new PolicyEvaluation (mdp, discount, this.policy, utility, options.evaluationSweeps, listener)
+    				: new PolicyEvaluation (mdp, discount, this.policy, options.evaluationMethod, listener));
     		// Updating the policy calculated using the policyEvaluation object 
     		for (currentState = 0; currentState < numStates; currentState++){
     			utility[currentState] = policyEvaluation.utility[currentState];
     		}
     		// Iterating over the set of all the states to see there is a change required for any of the states 
+    		policyChanges = 0;
+    		bellmanResidual = 0;
     		for (currentState = 0; currentState < numStates; currentState++){
     			// calculating the current expected utility 
     			currentUtility = calculateUtilityAction (currentState, mdp, this.policy[currentState], utility);
@@ -58,10 +177,19 @@ public class PolicyIteration {
     			if (bestUtility > currentUtility){
     				this.policy[currentState] = this.bestAction;
     				unchanged = false;
+    				policyChanges++;
     			}
+    			// Tracking how far the evaluated utility is from its backed-up value
+    			if (listener != null)
+    				bellmanResidual = Math.max(bellmanResidual,
+    							   Math.abs(mdp.reward[currentState] + discount * bestUtility - utility[currentState]));
     		}
+    		if (listener != null)
+    			listener.iteration(SolverListener.POLICY_ITERATION, this.iterations, bellmanResidual,
+    					   policyChanges, System.nanoTime() - start);
     	// Checking if there has been some change in the policy of any one of the states
-    	if (unchanged)
+    	// (and, for modified policy iteration, whether the utilities have converged)
+    	if (unchanged && (!modified || delta > policyEvaluation.residual))
     		break;
     	}
     }
@@ -73,25 +201,9 @@ public class PolicyIteration {
      * @return maximumUtility
      */
     private double calculateBestUtility (int currentState, Mdp mdp, double[] utility){
-    	int numDestinationStates, destinationStateCount, destinationStateIndex, numActions, currentAction;
-    	double maximumUtility = Double.NEGATIVE_INFINITY, currentUtility;
-    	numActions = mdp.numActions;
-    	// Iterating over all the actions, to get utility for each action 
-    	for (currentAction = 0; currentAction < numActions; currentAction++){
-    		currentUtility = 0.0;
-    		numDestinationStates = mdp.nextState[currentState][currentAction].length;
-    		// Iterating over all the destination states reachable for the current state for the current action  
-    		for (destinationStateCount = 0; destinationStateCount < numDestinationStates; destinationStateCount++){
-    			destinationStateIndex = mdp.nextState[currentState][currentAction][destinationStateCount];
-    			currentUtility += mdp.transProb[currentState][currentAction][destinationStateCount] *
-    				utility[destinationStateIndex];
-    		}
-    		// Checking if the current utility for the state is greater than the maximum utility
-    		if (currentUtility > maximumUtility){
-    			maximumUtility = currentUtility;
-    			this.bestAction = currentAction;
-    		}
-    	}
+    	// The kernel takes the maximum over all the actions of the utility of each action 
+    	double maximumUtility = this.kernel.backup(currentState, utility, this.greedyAction);
+    	this.bestAction = this.greedyAction[currentState];
     	return maximumUtility;
     }
     
@@ -105,17 +217,10 @@ public class PolicyIteration {
      * @return utilitySum
      */
     private double calculateUtilityAction (int currentState, Mdp mdp, int action, double[] utility){
-    	// Initializing the utility sum, for the current state
-    	double utilitySum = 0.0;
-    	// numDestinationStates is the total number of states reachable from the current state for the given action 
-    	int numDestinationStates = mdp.nextState[currentState][action].length, destinationStateCount, destinationStateIndex;
     	// Iterating over all the destination states to find the value of the 
-    	// total utility obtained from the current state for the given action 
-    	for (destinationStateCount = 0; destinationStateCount < numDestinationStates; destinationStateCount++){
-    		destinationStateIndex = mdp.nextState[currentState][action][destinationStateCount];
-    		utilitySum += mdp.transProb[currentState][action][destinationStateCount] * utility[destinationStateIndex];
-    	}
-    	return utilitySum;
+    	// total utility obtained from the current state for the given action,
+    	// summed in the same order as calculateBestUtility sums it
+    	return this.kernel.actionValue(currentState, action, utility);
     }
 
 }
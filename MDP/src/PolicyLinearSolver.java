@@ -0,0 +1,232 @@
+/**
+ * This class evaluates a fixed policy by solving the linear system
+ * <tt>(I - discount*P)U = R</tt> directly, where <tt>P</tt> is the
+ * transition matrix of the MDP restricted to the actions chosen by the
+ * policy and <tt>R</tt> is the reward vector.  Small systems are
+ * solved by dense LU factorization; large ones by the stabilized
+ * biconjugate gradient method (BiCGSTAB) with a Jacobi
+ * preconditioner, which only needs products with the sparse matrix
+ * and so reads the transitions straight from the
+ * <tt>TransitionStore</tt>.
+ */
+public class PolicyLinearSolver {
+
+    /** the solution of the last solve **/
+    public double utility[];
+
+    /** the number of BiCGSTAB iterations taken by the last solve
+     * (0 for a dense solve) **/
+    public int iterations;
+
+    /** whether the last solve reached the requested tolerance **/
+    public boolean converged;
+
+    /** if not null, told the largest residual of the recurrence and
+     * the time taken after every BiCGSTAB iteration **/
+    public SolverListener listener;
+
+    private TransitionStore transitions;
+    private double reward[];
+    private double discount;
+    private int policy[];
+    private int numStates;
+
+    /**
+     * Sets up a solver for the utility of <tt>policy</tt> on the
+     * given transitions and rewards.
+     */
+    public PolicyLinearSolver(TransitionStore transitions, double reward[],
+			      double discount, int policy[]) {
+	this.transitions = transitions;
+	this.reward = reward;
+	this.discount = discount;
+	this.policy = policy;
+	this.numStates = transitions.numStates();
+    }
+
+    /**
+     * Solves the system by LU factorization with partial pivoting of
+     * the dense <tt>numStates</tt> by <tt>numStates</tt> matrix.  This
+     * takes time cubic and memory quadratic in the number of states.
+     */
+    public double[] solveDense() {
+	int n = numStates;
+	double m[] = new double[n * n];
+	for (int s = 0; s < n; s++) {
+	    int a = policy[s];
+	    int end = transitions.rowEnd(s, a);
+	    for (int k = transitions.rowStart(s, a); k < end; k++)
+		m[s * n + transitions.target(k)] -= discount * transitions.prob(k);
+	    m[s * n + s] += 1.0;
+	}
+	double x[] = reward.clone();
+
+	// factor in place, applying the row exchanges to x as we go
+	for (int c = 0; c < n; c++) {
+	    int pivot = c;
+	    double best = Math.abs(m[c * n + c]);
+	    for (int r = c + 1; r < n; r++)
+		if (Math.abs(m[r * n + c]) > best) {
+		    best = Math.abs(m[r * n + c]);
+		    pivot = r;
+		}
+	    if (best == 0.0)
+		throw new ArithmeticException("singular policy matrix");
+	    if (pivot != c) {
+		for (int j = 0; j < n; j++) {
+		    double t = m[c * n + j];
+		    m[c * n + j] = m[pivot * n + j];
+		    m[pivot * n + j] = t;
+		}
+		double t = x[c];
+		x[c] = x[pivot];
+		x[pivot] = t;
+	    }
+	    double d = m[c * n + c];
+	    for (int r = c + 1; r < n; r++) {
+		double f = m[r * n + c] / d;
+		if (f == 0.0)
+		    continue;
+		m[r * n + c] = f;
+		for (int j = c + 1; j < n; j++)
+		    m[r * n + j] -= f * m[c * n + j];
+		x[r] -= f * x[c];
+	    }
+	}
+
+	// back substitution
+	for (int r = n - 1; r >= 0; r--) {
+	    double sum = x[r];
+	    for (int j = r + 1; j < n; j++)
+		sum -= m[r * n + j] * x[j];
+	    x[r] = sum / m[r * n + r];
+	}
+
+	utility = x;
+	iterations = 0;
+	converged = true;
+	return x;
+    }
+
+    /**
+     * Solves the system by preconditioned BiCGSTAB, starting from
+     * <tt>initial</tt> (or from zero if it is null), until the
+     * residual <tt>R - (I - discount*P)U</tt> is at most
+     * <tt>tolerance</tt> in every state or <tt>maxIterations</tt>
+     * iterations have been taken.  Since the inverse of the matrix has
+     * norm at most <tt>1/(1-discount)</tt>, the error of the returned
+     * utility is at most <tt>tolerance/(1-discount)</tt> in every
+     * state when <tt>converged</tt> is set.
+     */
+    public double[] solveBiCGStab(double initial[], double tolerance,
+				  int maxIterations) {
+	int n = numStates;
+	double x[] = (initial == null ? new double[n] : initial.clone());
+	double r[] = new double[n], rhat[] = new double[n];
+	double p[] = new double[n], v[] = new double[n];
+	double y[] = new double[n], z[] = new double[n], t[] = new double[n];
+
+	// Jacobi preconditioner: the inverse diagonal of the matrix
+	double invDiag[] = new double[n];
+	for (int s = 0; s < n; s++) {
+	    int a = policy[s];
+	    double d = 1.0;
+	    int end = transitions.rowEnd(s, a);
+	    for (int k = transitions.rowStart(s, a); k < end; k++)
+		if (transitions.target(k) == s)
+		    d -= discount * transitions.prob(k);
+	    invDiag[s] = 1.0 / d;
+	}
+
+	iterations = 0;
+	converged = false;
+	while (!converged && iterations < maxIterations) {
+	    // (re)start from the true residual of the current x
+	    multiply(x, r);
+	    for (int s = 0; s < n; s++) {
+		r[s] = reward[s] - r[s];
+		rhat[s] = r[s];
+		p[s] = v[s] = 0.0;
+	    }
+	    if (maxNorm(r) <= tolerance) {
+		converged = true;
+		break;
+	    }
+	    double rho = 1.0, alpha = 1.0, omega = 1.0;
+	    while (iterations < maxIterations) {
+		long start = (listener != null ? System.nanoTime() : 0);
+		iterations++;
+		double rhoNew = dot(rhat, r);
+		if (rhoNew == 0.0 || omega == 0.0)
+		    break;		// breakdown; restart
+		double beta = (rhoNew / rho) * (alpha / omega);
+		for (int s = 0; s < n; s++) {
+		    p[s] = r[s] + beta * (p[s] - omega * v[s]);
+		    y[s] = invDiag[s] * p[s];
+		}
+		multiply(y, v);
+		double rv = dot(rhat, v);
+		if (rv == 0.0)
+		    break;
+		alpha = rhoNew / rv;
+		for (int s = 0; s < n; s++)
+		    r[s] -= alpha * v[s];	// r now holds s = r - alpha*v
+		double norm = maxNorm(r);
+		if (norm <= tolerance) {
+		    for (int i = 0; i < n; i++)
+			x[i] += alpha * y[i];
+		    if (listener != null)
+			listener.iteration(SolverListener.BICGSTAB, iterations, norm,
+					   -1, System.nanoTime() - start);
+		    break;
+		}
+		for (int s = 0; s < n; s++)
+		    z[s] = invDiag[s] * r[s];
+		multiply(z, t);
+		double tt = dot(t, t);
+		omega = (tt == 0.0 ? 0.0 : dot(t, r) / tt);
+		for (int s = 0; s < n; s++) {
+		    x[s] += alpha * y[s] + omega * z[s];
+		    r[s] -= omega * t[s];
+		}
+		rho = rhoNew;
+		norm = maxNorm(r);
+		if (listener != null)
+		    listener.iteration(SolverListener.BICGSTAB, iterations, norm,
+				       -1, System.nanoTime() - start);
+		if (norm <= tolerance)
+		    break;
+	    }
+	    // confirm against the true residual; the recurrence for r
+	    // drifts from it in floating point
+	    multiply(x, t);
+	    double worst = 0.0;
+	    for (int s = 0; s < n; s++)
+		worst = Math.max(worst, Math.abs(reward[s] - t[s]));
+	    converged = (worst <= tolerance);
+	}
+
+	utility = x;
+	return x;
+    }
+
+    /** Computes <tt>out = (I - discount*P)x</tt>. */
+    private void multiply(double x[], double out[]) {
+	for (int s = 0; s < numStates; s++)
+	    out[s] = x[s] - discount * transitions.expectedUtility(s, policy[s], x);
+    }
+
+    private static double dot(double a[], double b[]) {
+	double sum = 0.0;
+	for (int i = 0; i < a.length; i++)
+	    sum += a[i] * b[i];
+	return sum;
+    }
+
+    private static double maxNorm(double a[]) {
+	double m = 0.0;
+	for (int i = 0; i < a.length; i++)
+	    m = Math.max(m, Math.abs(a[i]));
+	return m;
+    }
+}
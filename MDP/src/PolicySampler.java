@@ -0,0 +1,124 @@
+/**
+ * This class samples the transitions of an MDP under a fixed policy
+ * in constant time per sample, whatever the number of successors, by
+ * Walker's alias method.  The row of each state under the policy is
+ * turned into a table of <tt>n</tt> columns, each holding a threshold
+ * and two states; a sample picks a column uniformly and then one of
+ * its two states by comparing against the threshold.  The tables are
+ * built with Vose's algorithm, which is numerically stable.
+ *
+ * <p>A state's table is built the first time the state is sampled,
+ * so simulations that visit few states never pay for the rest.
+ * Building on demand is not thread-safe; samplers shared between
+ * threads should call <tt>buildAll</tt> first, after which sampling
+ * only reads the tables.  A sampler belongs to the policy it was
+ * made for: for a new policy, make a new sampler.
+ */
+public class PolicySampler {
+
+    /**
+     * Sets up sampling of the transitions of <tt>mdp</tt> under
+     * <tt>policy</tt>, which is not copied and should not be changed
+     * while the sampler is in use.  No tables are built yet.
+     */
+    public PolicySampler(Mdp mdp, int policy[]) {
+	this.transitions = mdp.transitions();
+	this.policy = policy;
+	int numStates = mdp.numStates;
+	rowOffset = new int[numStates + 1];
+	int longest = 0;
+	for (int s = 0; s < numStates; s++) {
+	    int n = transitions.rowEnd(s, policy[s]) - transitions.rowStart(s, policy[s]);
+	    rowOffset[s + 1] = rowOffset[s] + n;
+	    longest = Math.max(longest, n);
+	}
+	threshold = new double[rowOffset[numStates]];
+	first = new int[rowOffset[numStates]];
+	second = new int[rowOffset[numStates]];
+	built = new boolean[numStates];
+	scaled = new double[longest];
+	small = new int[longest];
+	large = new int[longest];
+    }
+
+    /**
+     * Builds the tables of every state, so that sampling no longer
+     * modifies the sampler and may be done from several threads.
+     */
+    public void buildAll() {
+	for (int s = 0; s < built.length; s++)
+	    if (!built[s])
+		build(s);
+    }
+
+    /**
+     * Returns the state reached from state <tt>s</tt> under the
+     * policy, using the number <tt>u</tt>, which should be uniform in
+     * <tt>[0,1)</tt>, as the only source of randomness.
+     */
+    public int sample(int s, double u) {
+	if (!built[s])
+	    build(s);
+	int off = rowOffset[s];
+	double x = u * (rowOffset[s + 1] - off);
+	int i = (int) x;
+	off += i;
+	return (x - i < threshold[off] ? first[off] : second[off]);
+    }
+
+    // private stuff
+
+    private TransitionStore transitions;
+    private int policy[];
+
+    /** the table of state <tt>s</tt> is in columns
+     * <tt>rowOffset[s] &lt;= k &lt; rowOffset[s+1]</tt>; a sample
+     * landing in column <tt>k</tt> at a fraction below
+     * <tt>threshold[k]</tt> of the way across gives
+     * <tt>first[k]</tt>, and otherwise <tt>second[k]</tt> **/
+    private int rowOffset[];
+    private double threshold[];
+    private int first[], second[];
+    private boolean built[];
+
+    /** scratch space for building the table of one state **/
+    private double scaled[];
+    private int small[], large[];
+
+    /** Builds the table of state <tt>s</tt> by Vose's algorithm. */
+    private void build(int s) {
+	int start = transitions.rowStart(s, policy[s]);
+	int off = rowOffset[s];
+	int n = rowOffset[s + 1] - off;
+	double total = 0.0;
+	for (int i = 0; i < n; i++)
+	    total += transitions.prob(start + i);
+
+	int numSmall = 0, numLarge = 0;
+	for (int i = 0; i < n; i++) {
+	    scaled[i] = transitions.prob(start + i) * n / total;
+	    first[off + i] = second[off + i] = transitions.target(start + i);
+	    if (scaled[i] < 1.0)
+		small[numSmall++] = i;
+	    else
+		large[numLarge++] = i;
+	}
+	while (numSmall > 0 && numLarge > 0) {
+	    int l = small[--numSmall];
+	    int g = large[--numLarge];
+	    threshold[off + l] = scaled[l];
+	    second[off + l] = transitions.target(start + g);
+	    scaled[g] = (scaled[g] + scaled[l]) - 1.0;
+	    if (scaled[g] < 1.0)
+		small[numSmall++] = g;
+	    else
+		large[numLarge++] = g;
+	}
+	// what is left is full up to rounding
+	while (numLarge > 0)
+	    threshold[off + large[--numLarge]] = 1.0;
+	while (numSmall > 0)
+	    threshold[off + small[--numSmall]] = 1.0;
+	built[s] = true;
+    }
+}
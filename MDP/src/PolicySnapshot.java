@@ -0,0 +1,311 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * This class saves the policy and utilities computed for an MDP to a
+ * file, and maps them back, so that a process can start from an
+ * earlier solution instead of solving again.  A snapshot records a
+ * checksum of the structure of the MDP it was computed for (its
+ * sizes, start state, rewards, transitions and names), and is only
+ * read back for an MDP with the same checksum.
+ *
+ * <p>The file is little-endian, and every section starts at a
+ * multiple of 8 bytes:
+ *
+ * <pre>
+ *   header      magic "PSNP", version, numStates, numActions,
+ *               1 if there are utilities and 0 if not, 0 (six ints),
+ *               discount (double), MDP checksum (long), and the file
+ *               offsets of the two sections (longs, 0 if absent)
+ *   policy      numStates ints
+ *   utility     numStates doubles
+ * </pre>
+ *
+ * Reading a snapshot maps the file rather than reading it; the
+ * <tt>action</tt> and <tt>utility</tt> methods read the mapping
+ * directly, and <tt>policy()</tt> and <tt>utility()</tt> copy it into
+ * arrays, such as those taken by the <tt>initialPolicy</tt> option of
+ * <tt>PolicyIteration</tt> and the <tt>initialUtility</tt> option of
+ * <tt>ValueIteration</tt>.
+ */
+public class PolicySnapshot {
+
+    /** "PSNP" read as a little-endian int **/
+    public static final int MAGIC = 0x504e5350;
+
+    /** the version of the format written by this class **/
+    public static final int VERSION = 1;
+
+    /** the suffix used for files in this format **/
+    public static final String SUFFIX = ".psnp";
+
+    /** the number of states of the MDP the snapshot is of **/
+    public final int numStates;
+
+    /** the number of actions of the MDP the snapshot is of **/
+    public final int numActions;
+
+    /** the discount factor the snapshot was computed with **/
+    public final double discount;
+
+    /** the checksum of the MDP the snapshot is of **/
+    public final long checksum;
+
+    /**
+     * Writes the given <tt>policy</tt> and <tt>utility</tt> (which may
+     * be null) of <tt>mdp</tt> for the given <tt>discount</tt> factor
+     * to the file <tt>filename</tt>.  The snapshot is written to a
+     * temporary file in the same directory and then renamed over
+     * <tt>filename</tt> in one step, so a crash never leaves a torn
+     * snapshot, and a snapshot already read from <tt>filename</tt>
+     * keeps its mapping of the old file intact.
+     */
+    public static void write(Mdp mdp, double discount, int policy[],
+			     double utility[], String filename)
+	throws IOException {
+	int n = mdp.numStates;
+	if (policy.length != n || (utility != null && utility.length != n))
+	    throw new IllegalArgumentException("policy and utility must have "
+					       + n + " states");
+	long policyPos = HEADER_BYTES;
+	long utilityPos = (utility == null ? 0 : align(policyPos + 4L * n));
+	ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+	Path path = Paths.get(filename).toAbsolutePath();
+	Path temp = Files.createTempFile(path.getParent(),
+					 path.getFileName().toString(), ".tmp");
+	boolean moved = false;
+	try {
+	    try (FileChannel ch = FileChannel.open(temp,
+						   StandardOpenOption.WRITE)) {
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(n);
+		buf.putInt(mdp.numActions);
+		buf.putInt(utility == null ? 0 : 1);
+		buf.putInt(0);
+		buf.putDouble(discount);
+		buf.putLong(checksum(mdp));
+		buf.putLong(policyPos);
+		buf.putLong(utilityPos);
+		for (int s = 0; s < n; s++) {
+		    if (buf.remaining() < 4)
+			drain(ch, buf);
+		    buf.putInt(policy[s]);
+		}
+		if (utility != null) {
+		    if (n % 2 != 0)
+			buf.putInt(0);
+		    for (int s = 0; s < n; s++) {
+			if (buf.remaining() < 8)
+			    drain(ch, buf);
+			buf.putDouble(utility[s]);
+		    }
+		}
+		drain(ch, buf);
+		ch.force(true);
+	    }
+	    Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+		       StandardCopyOption.REPLACE_EXISTING);
+	    moved = true;
+	} finally {
+	    if (!moved)
+		Files.deleteIfExists(temp);
+	}
+    }
+
+    /**
+     * Writes the policy and utilities computed by <tt>pi</tt> for
+     * <tt>mdp</tt> with the given <tt>discount</tt> factor to the file
+     * <tt>filename</tt>.
+     */
+    public static void write(Mdp mdp, double discount, PolicyIteration pi,
+			     String filename) throws IOException {
+	write(mdp, discount, pi.policy, pi.utility, filename);
+    }
+
+    /**
+     * Writes the policy and utilities computed by <tt>vi</tt> for
+     * <tt>mdp</tt> with the given <tt>discount</tt> factor to the file
+     * <tt>filename</tt>.
+     */
+    public static void write(Mdp mdp, double discount, ValueIteration vi,
+			     String filename) throws IOException {
+	write(mdp, discount, vi.policy, vi.utility, filename);
+    }
+
+    /**
+     * Maps the snapshot in the file <tt>filename</tt>, checking that
+     * it was written for an MDP with the structure of <tt>mdp</tt>.
+     * Throws an <tt>IOException</tt> if the file is not a snapshot of
+     * a known version or the MDP does not match.
+     */
+    public static PolicySnapshot read(String filename, Mdp mdp)
+	throws IOException {
+	PolicySnapshot snapshot = read(filename);
+	if (snapshot.numStates != mdp.numStates
+	    || snapshot.numActions != mdp.numActions
+	    || snapshot.checksum != checksum(mdp))
+	    throw new IOException("snapshot " + filename
+				  + " was computed for a different MDP");
+	return snapshot;
+    }
+
+    /**
+     * Maps the snapshot in the file <tt>filename</tt> without checking
+     * which MDP it belongs to.
+     */
+    public static PolicySnapshot read(String filename) throws IOException {
+	try (FileChannel ch = FileChannel.open(Paths.get(filename),
+					       StandardOpenOption.READ)) {
+	    if (ch.size() < HEADER_BYTES)
+		throw new IOException(filename + " is not a policy snapshot");
+	    ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+		.order(ByteOrder.LITTLE_ENDIAN);
+	    if (header.getInt() != MAGIC)
+		throw new IOException(filename + " is not a policy snapshot");
+	    int version = header.getInt();
+	    if (version != VERSION)
+		throw new IOException(filename + " has snapshot version "
+				      + version + ", expected " + VERSION);
+	    int numStates = header.getInt();
+	    int numActions = header.getInt();
+	    boolean hasUtility = (header.getInt() != 0);
+	    header.getInt();
+	    double discount = header.getDouble();
+	    long checksum = header.getLong();
+	    long policyPos = header.getLong();
+	    long utilityPos = header.getLong();
+	    if (numStates < 0 || numActions < 1
+		|| policyPos < 0 || (policyPos & 7) != 0
+		|| utilityPos < 0 || (utilityPos & 7) != 0)
+		throw new IOException(filename + " has a corrupt header");
+	    if (4L * numStates > ch.size() - policyPos
+		|| (hasUtility && 8L * numStates > ch.size() - utilityPos))
+		throw new IOException(filename + " is truncated");
+
+	    IntBuffer policy = ch.map(FileChannel.MapMode.READ_ONLY, policyPos,
+				      4L * numStates)
+		.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	    DoubleBuffer utility = (!hasUtility ? null
+				    : ch.map(FileChannel.MapMode.READ_ONLY, utilityPos,
+					     8L * numStates)
+				    .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+	    return new PolicySnapshot(numStates, numActions, discount, checksum,
+				      policy, utility);
+	}
+    }
+
+    /**
+     * Returns a 64-bit checksum of the structure of <tt>mdp</tt>: its
+     * numbers of states and actions, start state, rewards, the
+     * targets and probabilities of its transitions in row order, and
+     * the names of its states and actions.  This takes one pass over
+     * the transitions.
+     */
+    public static long checksum(Mdp mdp) {
+	TransitionStore t = mdp.transitions();
+	long h = mix(SEED, mdp.numStates);
+	h = mix(h, mdp.numActions);
+	h = mix(h, mdp.startState);
+	for (int s = 0; s < mdp.numStates; s++)
+	    h = mix(h, Double.doubleToLongBits(mdp.reward[s]));
+	for (int s = 0; s < mdp.numStates; s++)
+	    for (int a = 0; a < mdp.numActions; a++) {
+		int end = t.rowEnd(s, a);
+		h = mix(h, end - t.rowStart(s, a));
+		for (int k = t.rowStart(s, a); k < end; k++)
+		    h = mix(mix(h, t.target(k)), Double.doubleToLongBits(t.prob(k)));
+	    }
+	for (String name : mdp.stateName)
+	    h = mixString(h, name);
+	for (String name : mdp.actionName)
+	    h = mixString(h, name);
+	return finish(h);
+    }
+
+    /** Returns whether the snapshot holds utilities. */
+    public boolean hasUtility() {
+	return utilityBuffer != null;
+    }
+
+    /** Returns the action of state <tt>s</tt>, read from the file. */
+    public int action(int s) {
+	return policyBuffer.get(s);
+    }
+
+    /** Returns the utility of state <tt>s</tt>, read from the file. */
+    public double utility(int s) {
+	return utilityBuffer.get(s);
+    }
+
+    /** Returns a copy of the policy. */
+    public int[] policy() {
+	int policy[] = new int[numStates];
+	policyBuffer.duplicate().get(policy);
+	return policy;
+    }
+
+    /** Returns a copy of the utilities, or null if the snapshot has
+     * none. */
+    public double[] utility() {
+	if (utilityBuffer == null)
+	    return null;
+	double utility[] = new double[numStates];
+	utilityBuffer.duplicate().get(utility);
+	return utility;
+    }
+
+    // private stuff
+
+    private static final int HEADER_BYTES = 6 * 4 + 8 + 8 + 2 * 8;
+    private static final long SEED = 0x6a09e667f3bcc909L;
+    private static final long PRIME = 0x9e3779b97f4a7c15L;
+
+    private IntBuffer policyBuffer;
+    private DoubleBuffer utilityBuffer;
+
+    private PolicySnapshot(int numStates, int numActions, double discount,
+			   long checksum, IntBuffer policyBuffer,
+			   DoubleBuffer utilityBuffer) {
+	this.numStates = numStates;
+	this.numActions = numActions;
+	this.discount = discount;
+	this.checksum = checksum;
+	this.policyBuffer = policyBuffer;
+	this.utilityBuffer = utilityBuffer;
+    }
+
+    private static long align(long pos) {
+	return (pos + 7) & ~7L;
+    }
+
+    private static void drain(FileChannel ch, ByteBuffer buf) throws IOException {
+	buf.flip();
+	while (buf.hasRemaining())
+	    ch.write(buf);
+	buf.clear();
+    }
+
+    private static long mix(long h, long v) {
+	return Long.rotateLeft((h ^ v) * PRIME, 31);
+    }
+
+    private static long mixString(long h, String s) {
+	byte bytes[] = s.getBytes(StandardCharsets.UTF_8);
+	h = mix(h, bytes.length);
+	for (byte b : bytes)
+	    h = mix(h, b);
+	return h;
+    }
+
+    /** the finalizer of SplitMix64, so that every input bit affects
+     * every output bit **/
+    private static long finish(long h) {
+	h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+	h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+	return h ^ (h >>> 31);
+    }
+}
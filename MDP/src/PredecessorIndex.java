@@ -0,0 +1,224 @@
+import java.util.Arrays;
+
+/**
+ * This class is a reverse adjacency index of an MDP: for every state
+ * <tt>t</tt> it lists the distinct states <tt>s</tt> that can move to
+ * <tt>t</tt> under some action, together with the largest probability
+ * (over all the actions) of doing so.  The predecessors of <tt>t</tt>
+ * are <tt>state[k]</tt> for <tt>offset[t] &lt;= k &lt; end[t]</tt>,
+ * in increasing order.
+ *
+ * <p>When the transitions of one state change, <tt>update</tt> brings
+ * the lists of the states it moved to before and after the change up
+ * to date in place, without touching the others.  A list that
+ * outgrows its room is moved to the end of the arrays with room to
+ * spare, so the arrays themselves may be replaced; read them through
+ * the fields each time rather than keeping them.
+ */
+public class PredecessorIndex {
+
+    /** total number of states */
+    public final int numStates;
+
+    /** where the predecessors of each state start **/
+    public final int offset[];
+
+    /** one past where the predecessors of each state end **/
+    public final int end[];
+
+    /** the predecessors of all of the states **/
+    public int state[];
+
+    /** <tt>maxProb[k]</tt> is the largest probability, over all the
+     * actions, of moving from <tt>state[k]</tt> to the state whose
+     * list contains <tt>k</tt> **/
+    public double maxProb[];
+
+    /**
+     * Builds the index for the given transitions.  This takes two
+     * passes over the transitions and no per-state objects.
+     */
+    public PredecessorIndex(TransitionStore transitions) {
+	numStates = transitions.numStates();
+	int numActions = transitions.numActions();
+	int last[] = new int[numStates];
+	Arrays.fill(last, -1);
+	int offset[] = new int[numStates + 1];
+
+	// count the distinct predecessors of every state
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		int end = transitions.rowEnd(s, a);
+		for (int k = transitions.rowStart(s, a); k < end; k++) {
+		    int t = transitions.target(k);
+		    if (last[t] != s) {
+			last[t] = s;
+			offset[t + 1]++;
+		    }
+		}
+	    }
+	for (int t = 0; t < numStates; t++)
+	    offset[t + 1] += offset[t];
+
+	// fill in the lists; the states are visited in order, so the
+	// entries coming from one predecessor are adjacent
+	state = new int[offset[numStates]];
+	maxProb = new double[offset[numStates]];
+	int fill[] = last;
+	System.arraycopy(offset, 0, fill, 0, numStates);
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		int end = transitions.rowEnd(s, a);
+		for (int k = transitions.rowStart(s, a); k < end; k++) {
+		    int t = transitions.target(k);
+		    double p = transitions.prob(k);
+		    int i = fill[t];
+		    if (i > offset[t] && state[i - 1] == s) {
+			if (p > maxProb[i - 1])
+			    maxProb[i - 1] = p;
+		    } else {
+			state[i] = s;
+			maxProb[i] = p;
+			fill[t] = i + 1;
+		    }
+		}
+	    }
+
+	this.offset = Arrays.copyOf(offset, numStates);
+	this.end = Arrays.copyOfRange(offset, 1, numStates + 1);
+	limit = this.end.clone();
+	used = offset[numStates];
+    }
+
+    /** Returns the number of distinct predecessors of state
+     * <tt>t</tt>. */
+    public int numPredecessors(int t) {
+	return end[t] - offset[t];
+    }
+
+    /**
+     * Returns an array marking every state from which one of the
+     * given <tt>states</tt> can be reached (including those states
+     * themselves), i.e., every state whose utility may depend on
+     * them.
+     */
+    public boolean[] upstream(int states[]) {
+	boolean marked[] = new boolean[numStates];
+	int stack[] = new int[numStates];
+	int top = 0;
+	for (int s : states)
+	    if (!marked[s]) {
+		marked[s] = true;
+		stack[top++] = s;
+	    }
+	while (top > 0) {
+	    int t = stack[--top];
+	    for (int k = offset[t]; k < end[t]; k++) {
+		int s = state[k];
+		if (!marked[s]) {
+		    marked[s] = true;
+		    stack[top++] = s;
+		}
+	    }
+	}
+	return marked;
+    }
+
+    /**
+     * Brings the index up to date after the transitions of state
+     * <tt>s</tt> have changed to those in <tt>transitions</tt>.  The
+     * first <tt>numTargets</tt> entries of <tt>targets</tt> must
+     * include every state that <tt>s</tt> could move to by the rows
+     * that changed, before or after the change; only their lists are
+     * updated.  This takes time linear in the number of transitions
+     * of <tt>s</tt> and in the lengths of those lists.
+     */
+    public void update(TransitionStore transitions, int s, int targets[], int numTargets) {
+	int numActions = transitions.numActions();
+	if (best == null) {
+	    best = new double[numStates];
+	    Arrays.fill(best, -1.0);
+	}
+	for (int a = 0; a < numActions; a++) {
+	    int rowEnd = transitions.rowEnd(s, a);
+	    for (int k = transitions.rowStart(s, a); k < rowEnd; k++) {
+		int t = transitions.target(k);
+		best[t] = Math.max(best[t], transitions.prob(k));
+	    }
+	}
+	for (int i = 0; i < numTargets; i++) {
+	    int t = targets[i];
+	    if (best[t] >= 0)
+		put(t, s, best[t]);
+	    else
+		remove(t, s);
+	}
+	for (int a = 0; a < numActions; a++) {
+	    int rowEnd = transitions.rowEnd(s, a);
+	    for (int k = transitions.rowStart(s, a); k < rowEnd; k++)
+		best[transitions.target(k)] = -1.0;
+	}
+    }
+
+    // private stuff
+
+    /** the end of the room of the list of each state **/
+    private int limit[];
+
+    /** the length of the arrays in use **/
+    private int used;
+
+    /** the largest probability of moving from the state being updated
+     * to each state, or -1 if it cannot; allocated by the first
+     * update **/
+    private double best[];
+
+    /** Makes <tt>s</tt> a predecessor of <tt>t</tt> with the given
+     * largest probability. */
+    private void put(int t, int s, double p) {
+	int i = Arrays.binarySearch(state, offset[t], end[t], s);
+	if (i >= 0) {
+	    maxProb[i] = p;
+	    return;
+	}
+	if (end[t] == limit[t]) {
+	    move(t);
+	    i = Arrays.binarySearch(state, offset[t], end[t], s);
+	}
+	i = -i - 1;
+	System.arraycopy(state, i, state, i + 1, end[t] - i);
+	System.arraycopy(maxProb, i, maxProb, i + 1, end[t] - i);
+	state[i] = s;
+	maxProb[i] = p;
+	end[t]++;
+    }
+
+    /** Makes <tt>s</tt> no longer a predecessor of <tt>t</tt>. */
+    private void remove(int t, int s) {
+	int i = Arrays.binarySearch(state, offset[t], end[t], s);
+	if (i < 0)
+	    return;
+	System.arraycopy(state, i + 1, state, i, end[t] - i - 1);
+	System.arraycopy(maxProb, i + 1, maxProb, i, end[t] - i - 1);
+	end[t]--;
+    }
+
+    /** Moves the list of <tt>t</tt> to the end of the arrays, with
+     * room for as many predecessors again. */
+    private void move(int t) {
+	int n = end[t] - offset[t];
+	int room = Math.max(4, 2 * n);
+	if (used + room > state.length) {
+	    int capacity = (int) Math.min(Integer.MAX_VALUE,
+					  Math.max(2L * state.length, (long) used + room));
+	    state = Arrays.copyOf(state, capacity);
+	    maxProb = Arrays.copyOf(maxProb, capacity);
+	}
+	System.arraycopy(state, offset[t], state, used, n);
+	System.arraycopy(maxProb, offset[t], maxProb, used, n);
+	offset[t] = used;
+	end[t] = used + n;
+	limit[t] = used + room;
+	used += room;
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.Map;
+
+/**
+ * This class holds the action values <tt>Q(s,a)</tt> of an MDP: the
+ * reward of state <tt>s</tt> plus the discounted expected utility of
+ * its successors under action <tt>a</tt>.  The values are kept in one
+ * flat array indexed by <tt>s*numActions + a</tt>, in <tt>double</tt>
+ * or, to halve the memory, in <tt>float</tt> precision.
+ *
+ * <p>The best action of every state and its gap, the amount by which
+ * its value exceeds that of the next best action, are worked out
+ * once, in <tt>double</tt> precision, when the table is built, so
+ * looking them up takes constant time.  The lookups by state name go
+ * through the <tt>stateMap</tt> of the MDP and do not allocate.
+ */
+public class QTable {
+
+    /** the number of states of the MDP **/
+    public final int numStates;
+
+    /** the number of actions of the MDP **/
+    public final int numActions;
+
+    /**
+     * Builds the table for <tt>mdp</tt> with the given
+     * <tt>discount</tt> factor from the given <tt>utility</tt> of each
+     * state, keeping the values in <tt>float</tt> precision if
+     * <tt>compact</tt> is true.  The values are summed as
+     * <tt>BellmanKernel</tt> sums them, so the best actions are those
+     * a final backup of <tt>utility</tt> would choose.  States whose
+     * utility is NaN (as in the lifted results of
+     * <tt>ReachabilityReduction</tt>) get NaN values and gaps and best
+     * action 0; they must only be reachable from the other states
+     * with probability zero.
+     */
+    public QTable(Mdp mdp, double discount, double utility[], boolean compact) {
+	this.numStates = mdp.numStates;
+	this.numActions = mdp.numActions;
+	this.stateMap = mdp.stateMap();
+	this.actionName = mdp.actionName;
+	if (compact)
+	    qFloat = new float[numStates * numActions];
+	else
+	    qDouble = new double[numStates * numActions];
+	bestAction = new int[numStates];
+	gap = new double[numStates];
+
+	// the rows of solved states may still hold transitions of
+	// probability zero to unsolved ones, which must not spread NaN
+	double known[] = utility;
+	for (int s = 0; s < numStates; s++)
+	    if (Double.isNaN(utility[s])) {
+		if (known == utility)
+		    known = utility.clone();
+		known[s] = 0.0;
+	    }
+
+	BellmanKernel kernel = new BellmanKernel(mdp.transitions());
+	for (int s = 0; s < numStates; s++) {
+	    if (Double.isNaN(utility[s])) {
+		for (int a = 0; a < numActions; a++)
+		    if (compact)
+			qFloat[s * numActions + a] = Float.NaN;
+		    else
+			qDouble[s * numActions + a] = Double.NaN;
+		gap[s] = Double.NaN;
+		continue;
+	    }
+	    double best = Double.NEGATIVE_INFINITY, second = Double.NEGATIVE_INFINITY;
+	    int bestA = 0;
+	    for (int a = 0; a < numActions; a++) {
+		double q = mdp.reward[s] + discount * kernel.actionValue(s, a, known);
+		if (compact)
+		    qFloat[s * numActions + a] = (float) q;
+		else
+		    qDouble[s * numActions + a] = q;
+		if (q > best) {
+		    second = best;
+		    best = q;
+		    bestA = a;
+		} else if (q > second)
+		    second = q;
+	    }
+	    bestAction[s] = bestA;
+	    gap[s] = (numActions > 1 ? best - second : Double.POSITIVE_INFINITY);
+	}
+    }
+
+    /** Returns <tt>Q(s,a)</tt>. */
+    public double value(int s, int a) {
+	int i = s * numActions + a;
+	return (qDouble != null ? qDouble[i] : qFloat[i]);
+    }
+
+    /** Returns the action of state <tt>s</tt> with the largest value,
+     * the first one if several tie. */
+    public int bestAction(int s) {
+	return bestAction[s];
+    }
+
+    /**
+     * Returns how much the value of the best action of state
+     * <tt>s</tt> exceeds that of the next best, which is 0 if they
+     * tie and infinite if the MDP has only one action.
+     */
+    public double gap(int s) {
+	return gap[s];
+    }
+
+    /** Returns the index of the state named <tt>name</tt>, or -1 if
+     * there is none. */
+    public int stateId(String name) {
+	Integer s = stateMap.get(name);
+	return (s == null ? -1 : s.intValue());
+    }
+
+    /** Returns the best action of the state named <tt>name</tt>, or
+     * -1 if there is no such state. */
+    public int bestAction(String name) {
+	int s = stateId(name);
+	return (s < 0 ? -1 : bestAction[s]);
+    }
+
+    /** Returns the name of the best action of the state named
+     * <tt>name</tt>, or null if there is no such state. */
+    public String bestActionName(String name) {
+	int s = stateId(name);
+	return (s < 0 ? null : actionName[bestAction[s]]);
+    }
+
+    /** Returns the gap of the state named <tt>name</tt>, or NaN if
+     * there is no such state. */
+    public double gap(String name) {
+	int s = stateId(name);
+	return (s < 0 ? Double.NaN : gap[s]);
+    }
+
+    /** Returns the number of bytes taken by the values, best actions
+     * and gaps. */
+    public long memoryBytes() {
+	long values = (long) numStates * numActions * (qDouble != null ? 8 : 4);
+	return values + 12L * numStates;
+    }
+
+    // private stuff
+
+    private Map<String, Integer> stateMap;
+    private String actionName[];
+    private double qDouble[];
+    private float qFloat[];
+    private int bestAction[];
+    private double gap[];
+}
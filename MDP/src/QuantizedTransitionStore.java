@@ -0,0 +1,191 @@
+import java.util.Arrays;
+
+/**
+ * This class stores transitions in compressed sparse row form (see
+ * <tt>CsrTransitionStore</tt>), but keeps each probability as a small
+ * index into a table of the distinct probability values instead of as
+ * a <tt>double</tt>.  MDPs generated from a few basic probabilities,
+ * such as the ones written by <tt>GenerateMDP</tt>, have only a
+ * handful of distinct transition probabilities even after
+ * normalization, so each transition costs 5 bytes (a target and a
+ * one-byte index) instead of 12.  The table holds the exact values,
+ * so no precision is lost.
+ */
+public class QuantizedTransitionStore implements TransitionStore {
+
+    /** the most distinct probabilities that can be encoded **/
+    public static final int MAX_DISTINCT = 1 << 16;
+
+    private final int numStates, numActions;
+    private final int rowOffset[];
+    private final int target[];
+
+    /** the distinct probabilities **/
+    private final double table[];
+
+    /** the index into <tt>table</tt> of each transition's
+     * probability: one of these is used, depending on the size of
+     * the table **/
+    private final byte byteCode[];
+    private final char charCode[];
+
+    /**
+     * Encodes the given transitions.  Throws an
+     * <tt>IllegalArgumentException</tt> if they contain more than
+     * <tt>MAX_DISTINCT</tt> distinct probabilities.
+     */
+    public QuantizedTransitionStore(TransitionStore transitions) {
+	numStates = transitions.numStates();
+	numActions = transitions.numActions();
+	int numRows = numStates * numActions;
+	int n = transitions.numTransitions();
+
+	rowOffset = new int[numRows + 1];
+	target = new int[n];
+	int code[] = new int[n];
+	ProbabilityTable dictionary = new ProbabilityTable();
+	int k = 0;
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		rowOffset[s * numActions + a] = k;
+		int end = transitions.rowEnd(s, a);
+		for (int j = transitions.rowStart(s, a); j < end; j++, k++) {
+		    target[k] = transitions.target(j);
+		    code[k] = dictionary.indexOf(transitions.prob(j));
+		}
+	    }
+	rowOffset[numRows] = k;
+
+	table = dictionary.values();
+	if (table.length <= 256) {
+	    byteCode = new byte[n];
+	    charCode = null;
+	    for (int i = 0; i < n; i++)
+		byteCode[i] = (byte) code[i];
+	} else {
+	    byteCode = null;
+	    charCode = new char[n];
+	    for (int i = 0; i < n; i++)
+		charCode[i] = (char) code[i];
+	}
+    }
+
+    /** Returns the number of distinct probabilities. */
+    public int numDistinct() {
+	return table.length;
+    }
+
+    /** Returns the approximate number of bytes used by the arrays of
+     * this store. */
+    public long memoryBytes() {
+	long codeBytes = (byteCode != null ? 1L : 2L) * target.length;
+	return 4L * rowOffset.length + 4L * target.length + codeBytes
+	    + 8L * table.length;
+    }
+
+    public int numStates() {
+	return numStates;
+    }
+
+    public int numActions() {
+	return numActions;
+    }
+
+    public int numTransitions() {
+	return rowOffset[numStates * numActions];
+    }
+
+    public int rowStart(int s, int a) {
+	return rowOffset[s * numActions + a];
+    }
+
+    public int rowEnd(int s, int a) {
+	return rowOffset[s * numActions + a + 1];
+    }
+
+    public int target(int k) {
+	return target[k];
+    }
+
+    public double prob(int k) {
+	return table[byteCode != null ? byteCode[k] & 0xff : charCode[k]];
+    }
+
+    public double expectedUtility(int s, int a, double utility[]) {
+	double sum = 0.0;
+	int r = s * numActions + a;
+	int end = rowOffset[r + 1];
+	if (byteCode != null)
+	    for (int k = rowOffset[r]; k < end; k++)
+		sum += table[byteCode[k] & 0xff] * utility[target[k]];
+	else
+	    for (int k = rowOffset[r]; k < end; k++)
+		sum += table[charCode[k]] * utility[target[k]];
+	return sum;
+    }
+
+    public double expectedUtility(int s, int a, float utility[]) {
+	double sum = 0.0;
+	int r = s * numActions + a;
+	int end = rowOffset[r + 1];
+	if (byteCode != null)
+	    for (int k = rowOffset[r]; k < end; k++)
+		sum += table[byteCode[k] & 0xff] * utility[target[k]];
+	else
+	    for (int k = rowOffset[r]; k < end; k++)
+		sum += table[charCode[k]] * utility[target[k]];
+	return sum;
+    }
+
+    /** an open-addressing map from the bits of a probability to its
+     * index, numbering values in order of first appearance **/
+    private static class ProbabilityTable {
+	private long bits[] = new long[64];
+	private int index[] = new int[64];	// 1 + index, or 0 if empty
+	private double values[] = new double[16];
+	private int size = 0;
+
+	private int indexOf(double p) {
+	    long b = Double.doubleToRawLongBits(p);
+	    int mask = bits.length - 1;
+	    int i = (int) ((b * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+	    while (index[i] != 0) {
+		if (bits[i] == b)
+		    return index[i] - 1;
+		i = (i + 1) & mask;
+	    }
+	    if (size == MAX_DISTINCT)
+		throw new IllegalArgumentException(
+		    "transitions have more than " + MAX_DISTINCT
+		    + " distinct probabilities");
+	    if (size == values.length)
+		values = Arrays.copyOf(values, 2 * size);
+	    values[size] = p;
+	    bits[i] = b;
+	    index[i] = ++size;
+	    if (2 * size > bits.length)
+		rehash();
+	    return size - 1;
+	}
+
+	private void rehash() {
+	    long oldBits[] = bits;
+	    int oldIndex[] = index;
+	    bits = new long[2 * oldBits.length];
+	    index = new int[2 * oldBits.length];
+	    int mask = bits.length - 1;
+	    for (int j = 0; j < oldBits.length; j++)
+		if (oldIndex[j] != 0) {
+		    int i = (int) ((oldBits[j] * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+		    while (index[i] != 0)
+			i = (i + 1) & mask;
+		    bits[i] = oldBits[j];
+		    index[i] = oldIndex[j];
+		}
+	}
+
+	private double[] values() {
+	    return Arrays.copyOf(values, size);
+	}
+    }
+}
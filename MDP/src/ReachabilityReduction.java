@@ -0,0 +1,166 @@
+/**
+ * This class restricts an MDP to the states that can be reached from
+ * its start state, under any actions.  The utility and best action of
+ * a reachable state depend only on reachable states, so solving the
+ * reduced MDP gives the same answers for them as solving the whole
+ * one, without backing up states the agent can never be in.  The
+ * reachable states keep their relative order and are numbered from
+ * zero in the reduced MDP; <tt>liftUtility</tt> and
+ * <tt>liftPolicy</tt> map solutions back to the original numbering.
+ */
+public class ReachabilityReduction {
+
+    /** the MDP restricted to the reachable states **/
+    public Mdp reduced;
+
+    /** the number of reachable states **/
+    public int numReachable;
+
+    /** <tt>originalState[r]</tt> is the state of the original MDP
+     * numbered <tt>r</tt> in the reduced one **/
+    public int originalState[];
+
+    /** <tt>reducedState[s]</tt> is the number of original state
+     * <tt>s</tt> in the reduced MDP, or -1 if it is unreachable **/
+    public int reducedState[];
+
+    private int numStates;
+
+    /**
+     * Finds the states of <tt>mdp</tt> reachable from its start
+     * state, following only transitions of positive probability, and
+     * builds the reduced MDP.  The reduced MDP shares the action names
+     * of the original one and holds its transitions in a
+     * <tt>CsrTransitionStore</tt>.
+     */
+    public ReachabilityReduction(Mdp mdp) {
+	if (mdp.startState < 0 || mdp.startState >= mdp.numStates)
+	    throw new IllegalArgumentException("MDP has no start state");
+	TransitionStore t = mdp.transitions();
+	int numActions = mdp.numActions;
+	numStates = mdp.numStates;
+
+	// breadth-first search from the start state; the queue of
+	// visited states doubles as the list of reachable states
+	boolean reached[] = new boolean[numStates];
+	int queue[] = new int[numStates];
+	int head = 0, tail = 0;
+	reached[mdp.startState] = true;
+	queue[tail++] = mdp.startState;
+	long numTransitions = 0;
+	while (head < tail) {
+	    int s = queue[head++];
+	    for (int a = 0; a < numActions; a++) {
+		int end = t.rowEnd(s, a);
+		for (int k = t.rowStart(s, a); k < end; k++) {
+		    if (t.prob(k) <= 0)
+			continue;
+		    numTransitions++;
+		    int next = t.target(k);
+		    if (!reached[next]) {
+			reached[next] = true;
+			queue[tail++] = next;
+		    }
+		}
+	    }
+	}
+
+	// number the reachable states in their original order
+	numReachable = tail;
+	originalState = new int[numReachable];
+	reducedState = new int[numStates];
+	int r = 0;
+	for (int s = 0; s < numStates; s++) {
+	    if (reached[s]) {
+		originalState[r] = s;
+		reducedState[s] = r++;
+	    } else
+		reducedState[s] = -1;
+	}
+
+	// copy the reachable part of the MDP
+	reduced = new Mdp();
+	reduced.numStates = numReachable;
+	reduced.numActions = numActions;
+	reduced.actionName = mdp.actionName;
+	reduced.stateName = new String[numReachable];
+	reduced.reward = new double[numReachable];
+	reduced.startState = reducedState[mdp.startState];
+	int rowOffset[] = new int[numReachable * numActions + 1];
+	int target[] = new int[(int) numTransitions];
+	double prob[] = new double[(int) numTransitions];
+	int n = 0;
+	for (r = 0; r < numReachable; r++) {
+	    int s = originalState[r];
+	    reduced.stateName[r] = mdp.stateName[s];
+	    reduced.reward[r] = mdp.reward[s];
+	    for (int a = 0; a < numActions; a++) {
+		int end = t.rowEnd(s, a);
+		for (int k = t.rowStart(s, a); k < end; k++) {
+		    if (t.prob(k) <= 0)
+			continue;
+		    target[n] = reducedState[t.target(k)];
+		    prob[n] = t.prob(k);
+		    n++;
+		}
+		rowOffset[r * numActions + a + 1] = n;
+	    }
+	}
+	reduced.setTransitions(new CsrTransitionStore(numReachable, numActions,
+						      rowOffset, target, prob));
+    }
+
+    /**
+     * Returns the utilities of all of the original states, given those
+     * of the reduced states.  Unreachable states get a utility of NaN,
+     * since nothing about them was computed.
+     */
+    public double[] liftUtility(double reducedUtility[]) {
+	double utility[] = new double[numStates];
+	for (int s = 0; s < numStates; s++)
+	    utility[s] = (reducedState[s] < 0 ? Double.NaN
+			  : reducedUtility[reducedState[s]]);
+	return utility;
+    }
+
+    /**
+     * Returns a policy for all of the original states, given one for
+     * the reduced states.  Unreachable states get action 0.
+     */
+    public int[] liftPolicy(int reducedPolicy[]) {
+	int policy[] = new int[numStates];
+	for (int s = 0; s < numStates; s++)
+	    policy[s] = (reducedState[s] < 0 ? 0 : reducedPolicy[reducedState[s]]);
+	return policy;
+    }
+
+    /**
+     * Returns the utilities of the reduced states, given those of all
+     * of the original states.
+     */
+    public double[] restrictUtility(double utility[]) {
+	checkLength(utility.length);
+	double reducedUtility[] = new double[numReachable];
+	for (int r = 0; r < numReachable; r++)
+	    reducedUtility[r] = utility[originalState[r]];
+	return reducedUtility;
+    }
+
+    /**
+     * Returns the policy of the reduced states, given one for all of
+     * the original states.
+     */
+    public int[] restrictPolicy(int policy[]) {
+	checkLength(policy.length);
+	int reducedPolicy[] = new int[numReachable];
+	for (int r = 0; r < numReachable; r++)
+	    reducedPolicy[r] = policy[originalState[r]];
+	return reducedPolicy;
+    }
+
+    private void checkLength(int length) {
+	if (length != numStates)
+	    throw new IllegalArgumentException("expected " + numStates
+					       + " states, not " + length);
+    }
+}
@@ -0,0 +1,252 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class estimates the utility of a fixed policy empirically, by
+ * simulating many independent episodes of the MDP under the policy
+ * and averaging their discounted returns.  It is meant for checking
+ * the policies returned by the solvers at scale: the episodes are
+ * spread over several threads, each with its own
+ * <tt>SplittableRandom</tt>, and no memory is allocated per step.
+ *
+ * <p>An episode starts in the start state and collects the reward of
+ * each state it visits, discounted by <tt>discount</tt> per step,
+ * which is the same return whose expectation
+ * <tt>PolicyEvaluation</tt> computes.  Episodes are cut off after
+ * <tt>horizon</tt> steps; by default the horizon is chosen so that
+ * the rewards cut off can change the return by at most
+ * <tt>truncationError</tt>.
+ *
+ * <p>The statistics accumulate over calls to <tt>run</tt>, so more
+ * episodes can be added until the confidence interval is narrow
+ * enough.  With a given seed the results do not depend on how the
+ * threads are scheduled.
+ */
+public class RolloutEngine {
+
+    /**
+     * The settings accepted by the <tt>RolloutEngine</tt>
+     * constructor.
+     */
+    public static class Options {
+
+	/** the number of threads simulating episodes **/
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/** the number of steps in each episode, or 0 to choose it from
+	 * <tt>truncationError</tt> **/
+	public int horizon = 0;
+
+	/** the most the rewards after the horizon may change a return,
+	 * when the horizon is chosen automatically **/
+	public double truncationError = 1e-6;
+
+	/** the seed of the random numbers of all of the episodes **/
+	public long seed = System.nanoTime();
+
+	/** the confidence level of <tt>confidenceHalfWidth</tt> **/
+	public double confidence = 0.95;
+
+	/** the state the episodes start in, or -1 for the start state
+	 * of the MDP **/
+	public int startState = -1;
+    }
+
+    /** the number of episodes simulated so far **/
+    public long episodes;
+
+    /** the mean discounted return of the episodes **/
+    public double mean;
+
+    /** the sample variance of the discounted returns **/
+    public double variance;
+
+    /** the half width of the confidence interval about <tt>mean</tt>
+     * for the expected return, by the normal approximation **/
+    public double confidenceHalfWidth;
+
+    /** the number of steps in each episode **/
+    public int horizon;
+
+    /** the most by which the expected return of an episode cut off
+     * at <tt>horizon</tt> can differ from the true utility **/
+    public double truncationBound;
+
+    /**
+     * Sets up the simulation of <tt>policy</tt> on the given
+     * <tt>mdp</tt> with the given <tt>discount</tt> factor and default
+     * options.  No episodes are run until <tt>run</tt> is called.
+     */
+    public RolloutEngine(Mdp mdp, int policy[], double discount) {
+	this(mdp, policy, discount, new Options());
+    }
+
+    /**
+     * Sets up the simulation of <tt>policy</tt> as the three-argument
+     * constructor does, using the given <tt>options</tt>.  The alias
+     * tables of a <tt>PolicySampler</tt> are built for every state up
+     * front, so that sampling a step takes constant time and the
+     * threads share them without locking.
+     */
+    public RolloutEngine(Mdp mdp, int policy[], double discount, Options options) {
+	if (!(discount >= 0 && discount < 1))
+	    throw new IllegalArgumentException("discount must be in [0,1), not " + discount);
+	if (options.numThreads < 1)
+	    throw new IllegalArgumentException("need at least one thread");
+	this.reward = mdp.reward;
+	this.discount = discount;
+	this.numThreads = options.numThreads;
+	this.start = (options.startState < 0 ? mdp.startState : options.startState);
+	this.random = new SplittableRandom(options.seed);
+	this.z = normalQuantile(0.5 + options.confidence / 2);
+
+	this.sampler = new PolicySampler(mdp, policy);
+	sampler.buildAll();
+	int numStates = mdp.numStates;
+
+	double maxReward = 0.0;
+	for (int s = 0; s < numStates; s++)
+	    maxReward = Math.max(maxReward, Math.abs(reward[s]));
+	if (options.horizon > 0)
+	    horizon = options.horizon;
+	else if (maxReward == 0.0 || discount == 0.0)
+	    horizon = 1;
+	else
+	    horizon = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(
+		Math.log(options.truncationError * (1 - discount) / maxReward)
+		/ Math.log(discount))));
+	truncationBound = Math.pow(discount, horizon) * maxReward / (1 - discount);
+    }
+
+    /**
+     * Simulates <tt>numEpisodes</tt> more episodes, split evenly
+     * between the threads, and updates the statistics to cover all of
+     * the episodes run so far.
+     */
+    public void run(long numEpisodes) {
+	int tasks = (int) Math.min(numThreads, Math.max(1, numEpisodes));
+	ArrayList<Batch> batches = new ArrayList<Batch>();
+	for (int i = 0; i < tasks; i++)
+	    batches.add(new Batch(numEpisodes / tasks + (i < numEpisodes % tasks ? 1 : 0),
+				  random.split()));
+
+	if (tasks == 1)
+	    batches.get(0).call();
+	else {
+	    ExecutorService workers = Executors.newFixedThreadPool(tasks);
+	    try {
+		for (Future<Batch> f : workers.invokeAll(batches))
+		    f.get();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new RuntimeException(e);
+	    } catch (ExecutionException e) {
+		throw new RuntimeException(e.getCause());
+	    } finally {
+		workers.shutdownNow();
+	    }
+	}
+
+	for (Batch b : batches)
+	    merge(b.count, b.mean, b.m2);
+	variance = (episodes > 1 ? m2 / (episodes - 1) : 0.0);
+	confidenceHalfWidth = (episodes > 0 ? z * Math.sqrt(variance / episodes) : 0.0);
+    }
+
+    /**
+     * Returns the discounted return of one episode, drawing its steps
+     * from <tt>rand</tt>.
+     */
+    public double episode(SplittableRandom rand) {
+	double ret = 0.0, weight = 1.0;
+	int s = start;
+	for (int t = 0; t < horizon; t++) {
+	    ret += weight * reward[s];
+	    weight *= discount;
+	    s = sampler.sample(s, rand.nextDouble());
+	}
+	return ret;
+    }
+
+    // private stuff
+
+    private double reward[];
+    private double discount;
+    private int numThreads;
+    private int start;
+    private SplittableRandom random;
+    private double z;
+
+    /** the alias tables of the policy, all built **/
+    private PolicySampler sampler;
+
+    /** the sum of squared deviations from <tt>mean</tt> **/
+    private double m2;
+
+    /** Combines the statistics so far with those of another set of
+     * episodes (Chan et al.'s update of Welford's method). **/
+    private void merge(long count, double otherMean, double otherM2) {
+	if (count == 0)
+	    return;
+	long total = episodes + count;
+	double delta = otherMean - mean;
+	mean += delta * count / total;
+	m2 += otherM2 + delta * delta * ((double) episodes * count / total);
+	episodes = total;
+    }
+
+    /** The episodes run by one thread, and their statistics. */
+    private class Batch implements Callable<Batch> {
+	private long episodesToRun;
+	private SplittableRandom rand;
+	private long count;
+	private double mean, m2;
+
+	private Batch(long episodesToRun, SplittableRandom rand) {
+	    this.episodesToRun = episodesToRun;
+	    this.rand = rand;
+	}
+
+	public Batch call() {
+	    for (long i = 0; i < episodesToRun; i++) {
+		double x = episode(rand);
+		count++;
+		double delta = x - mean;
+		mean += delta / count;
+		m2 += delta * (x - mean);
+	    }
+	    return this;
+	}
+    }
+
+    /**
+     * Returns the <tt>p</tt> quantile of the standard normal
+     * distribution, by Acklam's rational approximation (relative error
+     * below 1.2e-9).
+     */
+    private static double normalQuantile(double p) {
+	if (!(p > 0 && p < 1))
+	    throw new IllegalArgumentException("confidence must be between 0 and 1");
+	double q, x;
+	if (p < 0.02425) {
+	    q = Math.sqrt(-2 * Math.log(p));
+	    x = (((((-7.784894002430293e-03 * q - 3.223964580411365e-01) * q
+		    - 2.400758277161838e+00) * q - 2.549732539343734e+00) * q
+		  + 4.374664141464968e+00) * q + 2.938163982698783e+00)
+		/ ((((7.784695709041462e-03 * q + 3.224671290700398e-01) * q
+		     + 2.445134137142996e+00) * q + 3.754408661907416e+00) * q + 1);
+	} else if (p > 1 - 0.02425) {
+	    return -normalQuantile(1 - p);
+	} else {
+	    q = p - 0.5;
+	    double r = q * q;
+	    x = (((((-3.969683028665376e+01 * r + 2.209460984245205e+02) * r
+		    - 2.759285104469687e+02) * r + 1.383577518672690e+02) * r
+		  - 3.066479806614716e+01) * r + 2.506628277459239e+00) * q
+		/ (((((-5.447609879822406e+01 * r + 1.615858368580409e+02) * r
+		      - 1.556989798598866e+02) * r + 6.680131188771802e+01) * r
+		    - 1.328068155288572e+01) * r + 1);
+	}
+	return x;
+    }
+}
@@ -18,15 +18,32 @@ public class RunCatMouse {
      *
      * <p>The command-line arguments should consist of a possible list
      * of options, followed by the name of a data file containing a
-     * description of the MDP.  By default, a GUI (graphical user
-     * interface) based animation will be invoked.  However, this can
-     * be changed with the appropriate command-line options: Using the
-     * "<tt>-b</tt> option will run the GUI while simultaneously
-     * printing a transcript of all states visited.  Using the <tt>-p
+     * description of the MDP, either in text form or in the binary
+     * form written by <tt>MdpBinaryFormat</tt>.  By default, a GUI
+     * (graphical user interface) based animation will be invoked.
+     * However, this can be changed with the appropriate command-line
+     * options: Using the "<tt>-b</tt> option will run the GUI while
+     * simultaneously printing a transcript of all states visited.  Using the <tt>-p
      * &lt;num&gt;</tt> option will not invoke the GUI at all but will
      * instead run the MDP for <tt>&lt;num&gt;</tt> steps, while printing
      * the results.  Finally, using the <tt>-n</tt> option will
-     * neither invoke the GUI nor print any results.
+     * neither invoke the GUI nor print any results.  Using the
+     * <tt>-s &lt;num&gt;</tt> option will run the MDP for
+     * <tt>&lt;num&gt;</tt> steps as fast as possible and print
+     * statistics of the run (see
+     * <tt>CatMouseAnimator.animateHeadless</tt>); adding <tt>-f
+     * &lt;num&gt;</tt> also prints the state every
+     * <tt>&lt;num&gt;</tt> steps.  Using the
+     * <tt>-t &lt;num&gt;</tt> option will run value iteration on
+     * <tt>&lt;num&gt;</tt> threads, and using the <tt>-r
+     * &lt;file&gt;</tt> option will write a trace of the iterations of
+     * value iteration and policy iteration to <tt>&lt;file&gt;</tt>,
+     * as JSON if its name ends in "<tt>.json</tt>" and as CSV
+     * otherwise.  Using the <tt>-e &lt;num&gt;</tt> option will
+     * compare the computed utility of the start state with the mean
+     * return of <tt>&lt;num&gt;</tt> simulated episodes (see
+     * <tt>RolloutEngine</tt>), run on the threads given by
+     * <tt>-t</tt>.
      *
      * <p>It is okay to change this main as you wish.  However, your
      * code should still work properly when using this one.
@@ -46,13 +63,23 @@ public class RunCatMouse {
 	}
 
 	// build MDP
-	Mdp mdp = new Mdp(options.filename);
+	Mdp mdp = Mdp.load(options.filename);
+
+	SolverTrace trace = (options.trace_file == null ? null : new SolverTrace());
 
 	// run value iteration
-	ValueIteration vpi = new ValueIteration(mdp, discount);
+	ValueIteration.Options vi_options = new ValueIteration.Options();
+	vi_options.numThreads = options.threads;
+	vi_options.listener = trace;
+	ValueIteration vpi = new ValueIteration(mdp, discount, vi_options);
 
 	// run policy iteration
-	PolicyIteration ppi = new PolicyIteration(mdp, discount);
+	PolicyIteration.Options pi_options = new PolicyIteration.Options();
+	pi_options.listener = trace;
+	PolicyIteration ppi = new PolicyIteration(mdp, discount, pi_options);
+
+	if (trace != null)
+	    trace.write(options.trace_file);
 
 	// evaluate returned policy
 	double[] util =
@@ -71,6 +98,19 @@ public class RunCatMouse {
 	System.out.println();
 	System.out.println();
 
+	// check the policy against simulated episodes
+	if (options.episodes > 0) {
+	    RolloutEngine.Options rollout_options = new RolloutEngine.Options();
+	    rollout_options.numThreads = options.threads;
+	    RolloutEngine rollouts =
+		new RolloutEngine(mdp, ppi.policy, discount, rollout_options);
+	    rollouts.run(options.episodes);
+	    System.out.printf("Utility of %s: %17.12f computed, %17.12f +- %.12f simulated (%d episodes)\n",
+			      mdp.stateName[mdp.startState], util[mdp.startState],
+			      rollouts.mean, rollouts.confidenceHalfWidth,
+			      rollouts.episodes);
+	    System.out.println();
+	}
 
 	// animate cat chasing mouse
 
@@ -90,6 +130,11 @@ public class RunCatMouse {
 	case PRINT_ONLY:
 	    animator.animatePrintOnly(simulator, options.anim_steps);
 	    break;
+	case HEADLESS:
+	    animator.animateHeadless(simulator, options.headless_steps,
+				     options.frame_interval);
+	    animator.printStatistics();
+	    break;
 	}
 
     }
@@ -101,11 +146,17 @@ public class RunCatMouse {
     private static final int GUI_WITH_TRANS = 1;
     private static final int PRINT_ONLY     = 2;
     private static final int NO_ANIMATION   = 3;
+    private static final int HEADLESS       = 4;
 
     private static class Options {
 	private String filename = null;
 	private int mode = GUI_ONLY;
 	private int anim_steps = 0;
+	private int threads = 1;
+	private String trace_file = null;
+	private long episodes = 0;
+	private long headless_steps = 0;
+	private long frame_interval = 0;
 
 	private Options(String argv[]) {
 	    for (int i = 0; i < argv.length; i++) {
@@ -118,6 +169,19 @@ public class RunCatMouse {
 		    mode = GUI_WITH_TRANS;
 		} else if (argv[i].equals("-n")) {
 		    mode = NO_ANIMATION;
+		} else if (argv[i].equals("-t")) {
+		    threads = Integer.parseInt(argv[++i]);
+		    if (threads < 1)
+			throw new RuntimeException("need at least one thread");
+		} else if (argv[i].equals("-r")) {
+		    trace_file = argv[++i];
+		} else if (argv[i].equals("-s")) {
+		    mode = HEADLESS;
+		    headless_steps = Long.parseLong(argv[++i]);
+		} else if (argv[i].equals("-f")) {
+		    frame_interval = Long.parseLong(argv[++i]);
+		} else if (argv[i].equals("-e")) {
+		    episodes = Long.parseLong(argv[++i]);
 		} else if (filename == null) {
 		    filename = argv[i];
 		} else
@@ -136,6 +200,11 @@ public class RunCatMouse {
 	System.err.println("            -p <num>   do not invoke GUI, but print results for <num> steps");
 	System.err.println("            -b         run GUI, and also print results");
 	System.err.println("            -n         do not invoke GUI and do not print results");
+	System.err.println("            -s <num>   do not invoke GUI, but run <num> steps and print statistics");
+	System.err.println("            -f <num>   with -s, also print the state every <num> steps");
+	System.err.println("            -t <num>   run value iteration on <num> threads");
+	System.err.println("            -r <file>  write a trace of the solver iterations to <file>");
+	System.err.println("            -e <num>   check the policy from the start state by <num> simulated episodes");
     }
 
 }
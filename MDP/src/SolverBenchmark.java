@@ -0,0 +1,311 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class is a benchmark harness for the MDP solvers.  It times
+ * value iteration (in each of its modes), policy iteration (plain and
+ * modified) and policy evaluation (iterative, BiCGSTAB and, for small
+ * MDPs, dense LU) on MDPs read from files and on random MDPs of
+ * several sizes, reporting for each the median, minimum and maximum
+ * time per run and the bytes allocated per run.  Every benchmark is
+ * run a number of times untimed first so that the timed runs see
+ * compiled code.  The random MDPs are generated from a fixed seed, so
+ * the same command line always measures the same problems.
+ *
+ * <p>Allocation is measured on the calling thread, so the work of the
+ * helper threads of a multi-threaded solver is not counted.  Policy
+ * iteration starts from a random policy, so its times vary between
+ * runs more than those of the other solvers.
+ */
+public class SolverBenchmark {
+
+    /**
+     * Runs the benchmarks.  The command-line arguments are a possible
+     * list of options followed by the names of any MDP files to
+     * benchmark besides the random ones:
+     *
+     * <pre>
+     *   -w &lt;num&gt;     untimed runs of each benchmark (default 3)
+     *   -r &lt;num&gt;     timed runs of each benchmark (default 5)
+     *   -s &lt;list&gt;    comma-separated sizes of the random MDPs
+     *                (default 1000,4000,16000,64000; "none" for none)
+     *   -a &lt;num&gt;     actions of the random MDPs (default 4)
+     *   -b &lt;num&gt;     successors of each action of the random MDPs
+     *                (default 8)
+     *   -d &lt;num&gt;     discount factor (default 0.95)
+     *   -t &lt;num&gt;     threads for the parallel value iteration
+     *                benchmark (default: the number of processors)
+     * </pre>
+     */
+    public static void main(String argv[])
+	throws FileNotFoundException, IOException {
+
+	int warmup = 3, runs = 5, numActions = 4, branching = 8;
+	int threads = Runtime.getRuntime().availableProcessors();
+	int sizes[] = {1000, 4000, 16000, 64000};
+	double discount = 0.95;
+	String files[] = new String[argv.length];
+	int numFiles = 0;
+	try {
+	    for (int i = 0; i < argv.length; i++) {
+		if (argv[i].equals("-w"))
+		    warmup = Integer.parseInt(argv[++i]);
+		else if (argv[i].equals("-r"))
+		    runs = Integer.parseInt(argv[++i]);
+		else if (argv[i].equals("-s"))
+		    sizes = parseSizes(argv[++i]);
+		else if (argv[i].equals("-a"))
+		    numActions = Integer.parseInt(argv[++i]);
+		else if (argv[i].equals("-b"))
+		    branching = Integer.parseInt(argv[++i]);
+		else if (argv[i].equals("-d"))
+		    discount = Double.parseDouble(argv[++i]);
+		else if (argv[i].equals("-t"))
+		    threads = Integer.parseInt(argv[++i]);
+		else if (argv[i].startsWith("-"))
+		    throw new IllegalArgumentException("unknown option " + argv[i]);
+		else
+		    files[numFiles++] = argv[i];
+	    }
+	    if (runs < 1 || warmup < 0 || threads < 1 || numActions < 1 || branching < 1)
+		throw new IllegalArgumentException("counts out of range");
+	} catch (RuntimeException e) {
+	    System.err.println("error parsing command-line arguments: " + e.getMessage());
+	    System.err.println("arguments: [-w <num>] [-r <num>] [-s <list>] [-a <num>] [-b <num>]");
+	    System.err.println("           [-d <num>] [-t <num>] [<filename> ...]");
+	    return;
+	}
+
+	SolverBenchmark benchmark = new SolverBenchmark(warmup, runs, discount, threads);
+	System.out.printf("%-24s %8s %10s  %-16s %10s %10s %10s %12s\n",
+			  "mdp", "states", "transitions", "solver",
+			  "median ms", "min ms", "max ms", "alloc MB");
+	for (int i = 0; i < numFiles; i++)
+	    benchmark.run(new File(files[i]).getName(), Mdp.load(files[i]));
+	for (int i = 0; i < sizes.length; i++)
+	    benchmark.run("random-" + sizes[i],
+			  randomMdp(sizes[i], numActions, branching, sizes[i]));
+    }
+
+    /**
+     * Returns a random MDP with <tt>numStates</tt> states and
+     * <tt>numActions</tt> actions, generated from the given
+     * <tt>seed</tt>.  Each action of each state moves to
+     * <tt>branching</tt> distinct states (or all of them, if there are
+     * fewer), half of them within 16 of the state in the numbering
+     * (within <tt>branching/2</tt> for more than 66 successors) and
+     * half anywhere, with random probabilities.  One state in twenty
+     * has a nonzero reward, between -1 and 1.
+     */
+    public static Mdp randomMdp(int numStates, int numActions,
+				int branching, long seed) {
+	Random random = new Random(seed);
+	Mdp mdp = new Mdp();
+	mdp.numStates = numStates;
+	mdp.numActions = numActions;
+	mdp.stateName = new String[numStates];
+	mdp.actionName = new String[numActions];
+	mdp.reward = new double[numStates];
+	mdp.startState = 0;
+	for (int s = 0; s < numStates; s++) {
+	    mdp.stateName[s] = "s" + s;
+	    if (random.nextInt(20) == 0)
+		mdp.reward[s] = 2 * random.nextDouble() - 1;
+	}
+	for (int a = 0; a < numActions; a++)
+	    mdp.actionName[a] = "a" + a;
+
+	int width = Math.min(branching, numStates);
+	// the window the near targets are drawn from holds at least
+	// width/2 distinct states, so that the rows can always be filled
+	int window = Math.max(33, width | 1);
+	int rowOffset[] = new int[numStates * numActions + 1];
+	int target[] = new int[numStates * numActions * width];
+	double prob[] = new double[target.length];
+	int k = 0;
+	for (int s = 0; s < numStates; s++)
+	    for (int a = 0; a < numActions; a++) {
+		int start = k;
+		double total = 0;
+		while (k - start < width) {
+		    int t = (k - start < width / 2
+			     ? Math.floorMod(s + random.nextInt(window) - window / 2, numStates)
+			     : random.nextInt(numStates));
+		    boolean seen = false;
+		    for (int j = start; j < k && !seen; j++)
+			seen = (target[j] == t);
+		    if (!seen)
+			target[k++] = t;
+		}
+		Arrays.sort(target, start, k);
+		for (int j = start; j < k; j++) {
+		    prob[j] = random.nextDouble() + 1e-3;
+		    total += prob[j];
+		}
+		for (int j = start; j < k; j++)
+		    prob[j] /= total;
+		rowOffset[s * numActions + a + 1] = k;
+	    }
+	mdp.setTransitions(new CsrTransitionStore(numStates, numActions,
+						  rowOffset, target, prob));
+	return mdp;
+    }
+
+    // private stuff for running and timing the benchmarks
+
+    /** the largest MDP on which dense LU is timed; it is far slower
+     * than the other engines well below this size, but timing it
+     * there shows by how much **/
+    private static final int DENSE_BENCHMARK_LIMIT = 1500;
+
+    private int warmup, runs, threads;
+    private double discount;
+    private com.sun.management.ThreadMXBean threadBean;
+
+    private SolverBenchmark(int warmup, int runs, double discount, int threads) {
+	this.warmup = warmup;
+	this.runs = runs;
+	this.discount = discount;
+	this.threads = threads;
+	java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+	if (bean instanceof com.sun.management.ThreadMXBean
+	    && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+	    threadBean = (com.sun.management.ThreadMXBean) bean;
+	    threadBean.setThreadAllocatedMemoryEnabled(true);
+	}
+    }
+
+    /** One solver configuration to be timed. */
+    private static abstract class Benchmark {
+	private String name;
+
+	private Benchmark(String name) {
+	    this.name = name;
+	}
+
+	/** Runs the solver once and returns something computed by it,
+	 * so that the run cannot be optimized away. */
+	abstract Object run();
+    }
+
+    /** Runs every benchmark on the given MDP and prints a line for each. */
+    private void run(String name, final Mdp mdp) {
+	final double discount = this.discount;
+	// the policy evaluated by the policy evaluation benchmarks
+	final int policy[] = new ValueIteration(mdp, discount).policy;
+
+	Benchmark benchmarks[] = {
+	    new Benchmark("vi-jacobi") {
+		Object run() {
+		    return new ValueIteration(mdp, discount).utility;
+		}
+	    },
+	    new Benchmark("vi-jacobi-" + threads + "t") {
+		Object run() {
+		    ValueIteration.Options options = new ValueIteration.Options();
+		    options.numThreads = threads;
+		    return new ValueIteration(mdp, discount, options).utility;
+		}
+	    },
+	    new Benchmark("vi-gauss-seidel") {
+		Object run() {
+		    ValueIteration.Options options = new ValueIteration.Options();
+		    options.mode = ValueIteration.GAUSS_SEIDEL;
+		    return new ValueIteration(mdp, discount, options).utility;
+		}
+	    },
+	    new Benchmark("vi-prioritized") {
+		Object run() {
+		    ValueIteration.Options options = new ValueIteration.Options();
+		    options.mode = ValueIteration.PRIORITIZED_SWEEPING;
+		    return new ValueIteration(mdp, discount, options).utility;
+		}
+	    },
+	    new Benchmark("pi") {
+		Object run() {
+		    return new PolicyIteration(mdp, discount).policy;
+		}
+	    },
+	    new Benchmark("pi-modified-20") {
+		Object run() {
+		    PolicyIteration.Options options = new PolicyIteration.Options();
+		    options.evaluationSweeps = 20;
+		    return new PolicyIteration(mdp, discount, options).policy;
+		}
+	    },
+	    new Benchmark("pe-iterative") {
+		Object run() {
+		    return new PolicyEvaluation(mdp, discount, policy).utility;
+		}
+	    },
+	    new Benchmark("pe-bicgstab") {
+		Object run() {
+		    return new PolicyEvaluation(mdp, discount, policy,
+						PolicyEvaluation.BICGSTAB).utility;
+		}
+	    },
+	    new Benchmark("pe-dense-lu") {
+		Object run() {
+		    return new PolicyEvaluation(mdp, discount, policy,
+						PolicyEvaluation.DENSE_LU).utility;
+		}
+	    },
+	};
+
+	for (int i = 0; i < benchmarks.length; i++) {
+	    if (threads == 1 && benchmarks[i].name.equals("vi-jacobi-1t"))
+		continue;
+	    if (benchmarks[i].name.equals("pe-dense-lu")
+		&& mdp.numStates > DENSE_BENCHMARK_LIMIT)
+		continue;
+	    measure(name, mdp, benchmarks[i]);
+	}
+    }
+
+    /** Times one benchmark and prints its line. */
+    private void measure(String name, Mdp mdp, Benchmark benchmark) {
+	long times[] = new long[runs];
+	long allocated = 0;
+	long thread = Thread.currentThread().getId();
+	for (int i = 0; i < warmup; i++)
+	    consume(benchmark.run());
+	for (int i = 0; i < runs; i++) {
+	    System.gc();
+	    long bytes = (threadBean == null ? 0 : threadBean.getThreadAllocatedBytes(thread));
+	    long start = System.nanoTime();
+	    consume(benchmark.run());
+	    times[i] = System.nanoTime() - start;
+	    if (threadBean != null)
+		allocated += threadBean.getThreadAllocatedBytes(thread) - bytes;
+	}
+	Arrays.sort(times);
+	System.out.printf("%-24s %8d %10d  %-16s %10.2f %10.2f %10.2f %12s\n",
+			  name, mdp.numStates, mdp.transitions().numTransitions(),
+			  benchmark.name, times[runs / 2] / 1e6, times[0] / 1e6,
+			  times[runs - 1] / 1e6,
+			  (threadBean == null ? "n/a"
+			   : String.format("%.2f", allocated / (double) runs / (1 << 20))));
+    }
+
+    /** a sink for the results of the runs **/
+    private int sink;
+
+    private void consume(Object result) {
+	sink += System.identityHashCode(result);
+    }
+
+    private static int[] parseSizes(String list) {
+	if (list.equals("none"))
+	    return new int[0];
+	String parts[] = list.split(",");
+	int sizes[] = new int[parts.length];
+	for (int i = 0; i < parts.length; i++) {
+	    sizes[i] = Integer.parseInt(parts[i].trim());
+	    if (sizes[i] < 1)
+		throw new IllegalArgumentException("bad size " + parts[i]);
+	}
+	return sizes;
+    }
+}
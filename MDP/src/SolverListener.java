@@ -0,0 +1,41 @@
+/**
+ * This is the interface through which the solvers report their
+ * progress.  A listener passed to <tt>ValueIteration</tt>,
+ * <tt>PolicyIteration</tt>, <tt>PolicyEvaluation</tt> or
+ * <tt>PolicyLinearSolver</tt> is told about every iteration as soon as
+ * it finishes; solvers given no listener skip the bookkeeping
+ * entirely.  <tt>SolverTrace</tt> is a listener that records the
+ * iterations and writes them out as CSV or JSON.
+ */
+public interface SolverListener {
+
+    /** the name reported by <tt>ValueIteration</tt> **/
+    public static final String VALUE_ITERATION = "value-iteration";
+
+    /** the name reported by <tt>PolicyIteration</tt> for each round
+     * of evaluation and improvement **/
+    public static final String POLICY_ITERATION = "policy-iteration";
+
+    /** the name reported by <tt>PolicyEvaluation</tt> for each sweep
+     * of the iterative method **/
+    public static final String POLICY_EVALUATION = "policy-evaluation";
+
+    /** the name reported by <tt>PolicyLinearSolver</tt> for each
+     * BiCGSTAB iteration **/
+    public static final String BICGSTAB = "bicgstab";
+
+    /**
+     * Called when <tt>solver</tt>, one of the names above, finishes
+     * iteration number <tt>iteration</tt> (counting from 1), which
+     * took <tt>nanos</tt> nanoseconds.  The <tt>residual</tt> is the
+     * quantity the solver tests for convergence: the largest change
+     * in utility over the iteration for the sweeping methods, the
+     * Bellman residual of the evaluated utilities for policy
+     * iteration, and the largest residual of the linear system for
+     * BiCGSTAB.  <tt>policyChanges</tt> is the number of states whose
+     * action changed during the iteration, or -1 for solvers that do
+     * not change a policy.
+     */
+    public void iteration(String solver, int iteration, double residual,
+			  int policyChanges, long nanos);
+}
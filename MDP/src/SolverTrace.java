@@ -0,0 +1,150 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * This class is a <tt>SolverListener</tt> that records every
+ * iteration reported to it in memory, so that recording costs little
+ * while a solver runs, and afterwards writes the whole trace as CSV or
+ * JSON.  Each record holds the solver name, the iteration number, the
+ * residual, the number of policy changes, the time the iteration took
+ * and the time at which it finished, measured from the creation of the
+ * trace.  Records of nested solvers (the evaluations inside policy
+ * iteration) are interleaved with those of the outer solver in the
+ * order they happened.
+ */
+public class SolverTrace implements SolverListener {
+
+    private String solver[];
+    private int iteration[];
+    private double residual[];
+    private int policyChanges[];
+    private long nanos[];
+    private long time[];
+    private int size;
+    private long created;
+
+    /** Creates an empty trace whose clock starts now. */
+    public SolverTrace() {
+	solver = new String[64];
+	iteration = new int[64];
+	residual = new double[64];
+	policyChanges = new int[64];
+	nanos = new long[64];
+	time = new long[64];
+	created = System.nanoTime();
+    }
+
+    public void iteration(String solver, int iteration, double residual,
+			  int policyChanges, long nanos) {
+	if (size == this.iteration.length)
+	    grow();
+	this.solver[size] = solver;
+	this.iteration[size] = iteration;
+	this.residual[size] = residual;
+	this.policyChanges[size] = policyChanges;
+	this.nanos[size] = nanos;
+	this.time[size] = System.nanoTime() - created;
+	size++;
+    }
+
+    /** Returns the number of iterations recorded. */
+    public int size() {
+	return size;
+    }
+
+    /** Returns the solver name of record <tt>i</tt>. */
+    public String solver(int i) {
+	return solver[i];
+    }
+
+    /** Returns the iteration number of record <tt>i</tt>. */
+    public int iteration(int i) {
+	return iteration[i];
+    }
+
+    /** Returns the residual of record <tt>i</tt>. */
+    public double residual(int i) {
+	return residual[i];
+    }
+
+    /** Returns the number of policy changes of record <tt>i</tt>. */
+    public int policyChanges(int i) {
+	return policyChanges[i];
+    }
+
+    /** Returns the nanoseconds taken by the iteration of record
+     * <tt>i</tt>. */
+    public long nanos(int i) {
+	return nanos[i];
+    }
+
+    /** Forgets all records, keeping the clock running. */
+    public void clear() {
+	Arrays.fill(solver, 0, size, null);
+	size = 0;
+    }
+
+    /**
+     * Writes the trace to the named file, as JSON if the name ends in
+     * "<tt>.json</tt>" and as CSV otherwise.
+     */
+    public void write(String filename) throws IOException {
+	PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+	try {
+	    if (filename.endsWith(".json"))
+		writeJson(out);
+	    else
+		writeCsv(out);
+	} finally {
+	    out.close();
+	}
+	if (out.checkError())
+	    throw new IOException("error writing trace to " + filename);
+    }
+
+    /**
+     * Writes the trace as CSV, one line per iteration after a header
+     * line.  Times are in milliseconds.
+     */
+    public void writeCsv(PrintWriter out) {
+	out.println("solver,iteration,residual,policy_changes,iteration_ms,elapsed_ms");
+	for (int i = 0; i < size; i++)
+	    out.println(solver[i] + "," + iteration[i] + "," + residual[i] + ","
+			+ policyChanges[i] + "," + millis(nanos[i]) + "," + millis(time[i]));
+	out.flush();
+    }
+
+    /**
+     * Writes the trace as a JSON array holding one object per
+     * iteration, with the same fields as the CSV columns.  Residuals
+     * that are not finite are written as <tt>null</tt>.
+     */
+    public void writeJson(PrintWriter out) {
+	out.println("[");
+	for (int i = 0; i < size; i++) {
+	    out.print("  {\"solver\": \"" + solver[i] + "\", \"iteration\": " + iteration[i]
+		      + ", \"residual\": " + (Double.isInfinite(residual[i]) || Double.isNaN(residual[i])
+					      ? "null" : Double.toString(residual[i]))
+		      + ", \"policy_changes\": " + policyChanges[i]
+		      + ", \"iteration_ms\": " + millis(nanos[i])
+		      + ", \"elapsed_ms\": " + millis(time[i]) + "}");
+	    out.println(i + 1 < size ? "," : "");
+	}
+	out.println("]");
+	out.flush();
+    }
+
+    private static double millis(long nanos) {
+	return nanos / 1e6;
+    }
+
+    private void grow() {
+	int capacity = 2 * iteration.length;
+	solver = Arrays.copyOf(solver, capacity);
+	iteration = Arrays.copyOf(iteration, capacity);
+	residual = Arrays.copyOf(residual, capacity);
+	policyChanges = Arrays.copyOf(policyChanges, capacity);
+	nanos = Arrays.copyOf(nanos, capacity);
+	time = Arrays.copyOf(time, capacity);
+    }
+}
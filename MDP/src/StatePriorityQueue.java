@@ -0,0 +1,136 @@
+import java.util.Arrays;
+
+/**
+ * This class is a priority queue of states, implemented as a binary
+ * max-heap over primitive arrays.  Each state is in the queue at most
+ * once, and its priority can only be raised while it is there, which
+ * is what prioritized sweeping needs: a state is queued when one of
+ * its successors changes, and queued again with a higher priority if
+ * more of them change before it is backed up.
+ */
+public class StatePriorityQueue {
+
+    /** heap[0..size-1] are the queued states, highest priority first **/
+    private int heap[];
+    private int size;
+
+    /** position of each state in <tt>heap</tt>, or -1 if not queued **/
+    private int position[];
+
+    /** the priority of each queued state **/
+    private double priority[];
+
+    /**
+     * Creates an empty queue for states numbered from 0 up to (but
+     * not including) <tt>numStates</tt>.
+     */
+    public StatePriorityQueue(int numStates) {
+	heap = new int[numStates];
+	position = new int[numStates];
+	priority = new double[numStates];
+	Arrays.fill(position, -1);
+    }
+
+    /** Returns true if no state is queued. */
+    public boolean isEmpty() {
+	return size == 0;
+    }
+
+    /** Returns the number of queued states. */
+    public int size() {
+	return size;
+    }
+
+    /** Returns true if state <tt>s</tt> is queued. */
+    public boolean contains(int s) {
+	return position[s] >= 0;
+    }
+
+    /** Returns the priority of state <tt>s</tt>, or 0 if it is not
+     * queued. */
+    public double priority(int s) {
+	return (position[s] >= 0 ? priority[s] : 0.0);
+    }
+
+    /** Returns the highest priority in the queue, which must not be
+     * empty. */
+    public double maxPriority() {
+	return priority[heap[0]];
+    }
+
+    /**
+     * Queues state <tt>s</tt> with priority <tt>p</tt>.  If <tt>s</tt>
+     * is already queued, its priority becomes the larger of its
+     * current priority and <tt>p</tt>.
+     */
+    public void raise(int s, double p) {
+	int i = position[s];
+	if (i < 0) {
+	    i = size++;
+	    heap[i] = s;
+	    position[s] = i;
+	} else if (p <= priority[s]) {
+	    return;
+	}
+	priority[s] = p;
+	siftUp(i);
+    }
+
+    /** Removes and returns the state with the highest priority.  The
+     * queue must not be empty. */
+    public int poll() {
+	int s = heap[0];
+	position[s] = -1;
+	size--;
+	if (size > 0) {
+	    heap[0] = heap[size];
+	    position[heap[0]] = 0;
+	    siftDown(0);
+	}
+	return s;
+    }
+
+    /** Removes every state from the queue. */
+    public void clear() {
+	for (int i = 0; i < size; i++)
+	    position[heap[i]] = -1;
+	size = 0;
+    }
+
+    private void siftUp(int i) {
+	int s = heap[i];
+	double p = priority[s];
+	while (i > 0) {
+	    int parent = (i - 1) >>> 1;
+	    int ps = heap[parent];
+	    if (priority[ps] >= p)
+		break;
+	    heap[i] = ps;
+	    position[ps] = i;
+	    i = parent;
+	}
+	heap[i] = s;
+	position[s] = i;
+    }
+
+    private void siftDown(int i) {
+	int s = heap[i];
+	double p = priority[s];
+	int half = size >>> 1;
+	while (i < half) {
+	    int child = 2 * i + 1;
+	    int cs = heap[child];
+	    if (child + 1 < size && priority[heap[child + 1]] > priority[cs]) {
+		child++;
+		cs = heap[child];
+	    }
+	    if (p >= priority[cs])
+		break;
+	    heap[i] = cs;
+	    position[cs] = i;
+	    i = child;
+	}
+	heap[i] = s;
+	position[s] = i;
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * This class runs value iteration one strongly connected component of
+ * the transition graph at a time.  The utility of a state depends only
+ * on the states it can reach, so once the components are ordered with
+ * every component after all of those it can move to, each component
+ * can be solved to convergence on its own, against the final
+ * utilities of the components below it, and never visited again.
+ * For MDPs that are mostly acyclic, such as those in which some
+ * coordinate only ever increases, most components are single states
+ * and are solved by a single backup; only the cyclic parts need
+ * repeated sweeps.
+ *
+ * <p>The components are found by Tarjan's algorithm, written with an
+ * explicit stack so that long chains of states cannot overflow the
+ * call stack.  Tarjan's algorithm completes the components in exactly
+ * the order needed: each one after every component it can reach.
+ * Within a component, states are swept in place as in the
+ * <tt>GAUSS_SEIDEL</tt> mode of <tt>ValueIteration</tt>, with the same
+ * convergence threshold.
+ */
+public class TopologicalValueIteration {
+
+    /** the computed optimal policy for the given MDP **/
+    public int policy[];
+
+    /** the computed optimal utility for the given MDP **/
+    public double utility[];
+
+    /** the number of sweeps performed, summed over the components
+     * (a component of one state without a self-loop takes one) **/
+    public int iterations;
+
+    /** the number of single-state backups performed **/
+    public long backups;
+
+    /** the number of strongly connected components **/
+    public int numComponents;
+
+    /** the number of states in the largest component **/
+    public int largestComponent;
+
+    /** <tt>component[s]</tt> is the number of the component of state
+     * <tt>s</tt>; components are numbered in the order they are
+     * solved, so a state can only move to states in components with
+     * the same or a smaller number **/
+    public int component[];
+
+    /**
+     * Computes the optimal policy and utility of the given
+     * <tt>mdp</tt> with the given <tt>discount</tt> factor.  Only
+     * transitions of positive probability count as edges.
+     */
+    public TopologicalValueIteration(Mdp mdp, double discount) {
+	TransitionStore t = mdp.transitions();
+	BellmanKernel kernel = new BellmanKernel(t);
+	int numStates = mdp.numStates;
+	utility = new double[numStates];
+	policy = new int[numStates];
+	double delta = Math.pow(10, -13) * (1 - discount) / discount;
+
+	// the states grouped by component, in the order solved
+	int order[] = new int[numStates];
+	int componentStart[] = new int[numStates + 1];
+	findComponents(t, order, componentStart);
+
+	for (int c = 0; c < numComponents; c++) {
+	    int from = componentStart[c], to = componentStart[c + 1];
+	    largestComponent = Math.max(largestComponent, to - from);
+	    if (to - from == 1 && !hasSelfLoop(t, order[from])) {
+		// all successors are final, so one backup is exact
+		int s = order[from];
+		utility[s] = mdp.reward[s] + discount * kernel.backup(s, utility, policy);
+		backups++;
+		iterations++;
+		continue;
+	    }
+	    double maxDifference;
+	    do {
+		maxDifference = 0;
+		for (int i = from; i < to; i++) {
+		    int s = order[i];
+		    double oldUtility = utility[s];
+		    utility[s] = mdp.reward[s] + discount * kernel.backup(s, utility, policy);
+		    double difference = Math.abs(utility[s] - oldUtility);
+		    if (difference > maxDifference)
+			maxDifference = difference;
+		}
+		backups += to - from;
+		iterations++;
+	    } while (delta <= maxDifference);
+	}
+    }
+
+    /**
+     * Runs Tarjan's algorithm, filling in <tt>component</tt> and
+     * <tt>numComponents</tt>, and listing the states of component
+     * <tt>c</tt> in <tt>order[componentStart[c]]</tt> up to (but not
+     * including) <tt>order[componentStart[c+1]]</tt>.
+     */
+    private void findComponents(TransitionStore t, int order[], int componentStart[]) {
+	int numStates = t.numStates(), numActions = t.numActions();
+	int index[] = new int[numStates], low[] = new int[numStates];
+	boolean onStack[] = new boolean[numStates];
+	// the stack of Tarjan's algorithm, and the stack of states being
+	// explored in place of recursive calls, with the next transition
+	// each of them is to follow
+	int stack[] = new int[numStates], callStack[] = new int[numStates];
+	int nextAction[] = new int[numStates], nextEdge[] = new int[numStates];
+	int top = 0, callTop = 0, counter = 0, placed = 0;
+	component = new int[numStates];
+	java.util.Arrays.fill(index, -1);
+
+	for (int root = 0; root < numStates; root++) {
+	    if (index[root] >= 0)
+		continue;
+	    index[root] = low[root] = counter++;
+	    stack[top++] = root;
+	    onStack[root] = true;
+	    callStack[callTop++] = root;
+	    nextAction[root] = 0;
+	    nextEdge[root] = t.rowStart(root, 0);
+
+	    while (callTop > 0) {
+		int v = callStack[callTop - 1];
+		boolean descended = false;
+		// follow the remaining transitions of v until one leads
+		// to an unvisited state
+		while (!descended && nextAction[v] < numActions) {
+		    int a = nextAction[v];
+		    if (nextEdge[v] >= t.rowEnd(v, a)) {
+			if (++nextAction[v] < numActions)
+			    nextEdge[v] = t.rowStart(v, nextAction[v]);
+			continue;
+		    }
+		    int k = nextEdge[v]++;
+		    if (t.prob(k) <= 0)
+			continue;
+		    int w = t.target(k);
+		    if (index[w] < 0) {
+			index[w] = low[w] = counter++;
+			stack[top++] = w;
+			onStack[w] = true;
+			callStack[callTop++] = w;
+			nextAction[w] = 0;
+			nextEdge[w] = t.rowStart(w, 0);
+			descended = true;
+		    } else if (onStack[w] && index[w] < low[v])
+			low[v] = index[w];
+		}
+		if (descended)
+		    continue;
+
+		// v is finished: pass its low link up, and pop its
+		// component if it is the root of one
+		callTop--;
+		if (callTop > 0) {
+		    int u = callStack[callTop - 1];
+		    if (low[v] < low[u])
+			low[u] = low[v];
+		}
+		if (low[v] == index[v]) {
+		    componentStart[numComponents] = placed;
+		    int w;
+		    do {
+			w = stack[--top];
+			onStack[w] = false;
+			component[w] = numComponents;
+			order[placed++] = w;
+		    } while (w != v);
+		    numComponents++;
+		}
+	    }
+	}
+	componentStart[numComponents] = placed;
+    }
+
+    /** Returns whether state <tt>s</tt> can move to itself. */
+    private static boolean hasSelfLoop(TransitionStore t, int s) {
+	for (int a = 0; a < t.numActions(); a++) {
+	    int end = t.rowEnd(s, a);
+	    for (int k = t.rowStart(s, a); k < end; k++)
+		if (t.target(k) == s && t.prob(k) > 0)
+		    return true;
+	}
+	return false;
+    }
+}
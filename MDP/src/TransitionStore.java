@@ -0,0 +1,59 @@
+/**
+ * This is the interface through which the solvers read the transition
+ * model of an MDP.  The transitions of every state-action pair
+ * <tt>(s,a)</tt> occupy a contiguous range of indices
+ * <tt>rowStart(s,a) &lt;= k &lt; rowEnd(s,a)</tt>; entry <tt>k</tt>
+ * moves to state <tt>target(k)</tt> with probability
+ * <tt>prob(k)</tt>.  Implementations are free to choose how these
+ * entries are laid out in memory.
+ */
+public interface TransitionStore {
+
+    /** Returns the total number of states. */
+    public int numStates();
+
+    /** Returns the total number of actions. */
+    public int numActions();
+
+    /** Returns the total number of stored transitions. */
+    public int numTransitions();
+
+    /** Returns the index of the first transition of <tt>(s,a)</tt>. */
+    public int rowStart(int s, int a);
+
+    /** Returns one past the index of the last transition of
+     * <tt>(s,a)</tt>. */
+    public int rowEnd(int s, int a);
+
+    /** Returns the state reached by transition <tt>k</tt>. */
+    public int target(int k);
+
+    /** Returns the probability of transition <tt>k</tt>. */
+    public double prob(int k);
+
+    /**
+     * Returns the expected value of <tt>utility</tt> over the states
+     * reached from state <tt>s</tt> under action <tt>a</tt>, summed in
+     * row order.
+     */
+    public default double expectedUtility(int s, int a, double utility[]) {
+	double sum = 0.0;
+	int end = rowEnd(s, a);
+	for (int k = rowStart(s, a); k < end; k++)
+	    sum += prob(k) * utility[target(k)];
+	return sum;
+    }
+
+    /**
+     * Returns the expected value of <tt>utility</tt> over the states
+     * reached from state <tt>s</tt> under action <tt>a</tt>, summed in
+     * row order in <tt>double</tt> precision.
+     */
+    public default double expectedUtility(int s, int a, float utility[]) {
+	double sum = 0.0;
+	int end = rowEnd(s, a);
+	for (int k = rowStart(s, a); k < end; k++)
+	    sum += prob(k) * utility[target(k)];
+	return sum;
+    }
+}
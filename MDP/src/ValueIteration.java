@@ -1,3 +1,6 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 /**
  * This is the template of a class that should run value iteration on
  * a given MDP to compute the optimal policy which is returned in the
@@ -18,6 +21,101 @@ public class ValueIteration {
 
     /** the computed optimal utility for the given MDP **/
     public double utility[];
+
+    /** the number of iterations performed: sweeps over all the
+     * states, or for <tt>PRIORITIZED_SWEEPING</tt> the number of
+     * states taken from the queue **/
+    public int iterations;
+
+    /** the number of single-state backups performed **/
+    public long backups;
+
+    /** the action values of the computed utility, if
+     * <tt>keepQValues</tt> was set in the options; otherwise null **/
+    public QTable qValues;
+
+    /** Each sweep backs up every state against the utilities of the
+     * previous sweep. **/
+    public static final int JACOBI = 0;
+
+    /** Each sweep backs up every state in place, so that later states
+     * in the same sweep see the new utilities of earlier ones. **/
+    public static final int GAUSS_SEIDEL = 1;
+
+    /** States are backed up in place one at a time, taking next the
+     * state whose utility may be furthest from its backed-up value,
+     * and only while that amount exceeds a threshold. **/
+    public static final int PRIORITIZED_SWEEPING = 2;
+
+    /** the kernel computing backups over the transitions of the MDP being solved **/
+    private BellmanKernel kernel;
+
+    /** the MDP being solved, its discount factor, and the utilities
+     * computed by the current sweep **/
+    private Mdp mdp;
+    private double discount;
+    private double tempUtility[];
+
+    /** the listener told about each sweep, if any, and the policy
+     * before the sweep it is timing **/
+    private SolverListener listener;
+    private int previousPolicy[];
+
+    /** sweeps covering fewer states than this are not split further
+     * between the worker threads **/
+    private static final int MIN_PARALLEL_STATES = 1024;
+
+    /**
+     * The settings accepted by the <tt>ValueIteration</tt>
+     * constructor.  The defaults reproduce the behavior of the
+     * two-argument constructor.
+     */
+    public static class Options {
+
+	/** one of <tt>JACOBI</tt>, <tt>GAUSS_SEIDEL</tt> or
+	 * <tt>PRIORITIZED_SWEEPING</tt> **/
+	public int mode = JACOBI;
+
+	/** the number of threads that share each sweep over the
+	 * states in <tt>JACOBI</tt> mode; with 1 the sweep runs on the
+	 * calling thread **/
+	public int numThreads = 1;
+
+	/** in <tt>PRIORITIZED_SWEEPING</tt> mode, a state is backed up
+	 * again only when the changes of its successors may have moved
+	 * its backed-up value by more than this; values of 0 or less
+	 * select the convergence threshold of the other modes **/
+	public double priorityThreshold = 0;
+
+	/** if not null, told the largest change in utility, the number
+	 * of policy changes and the time taken after every sweep (in
+	 * <tt>PRIORITIZED_SWEEPING</tt> mode, after every
+	 * <tt>numStates</tt> backups, with the largest remaining
+	 * priority as the residual) **/
+	public SolverListener listener = null;
+
+	/** if true, only the states reachable from the start state are
+	 * solved (see <tt>ReachabilityReduction</tt>); the others get a
+	 * utility of NaN and action 0 **/
+	public boolean reachableOnly = false;
+
+	/** if true, the action values of the solution are kept in
+	 * <tt>qValues</tt> **/
+	public boolean keepQValues = false;
+
+	/** if true, the kept action values are stored in
+	 * <tt>float</tt> precision **/
+	public boolean compactQValues = false;
+
+	/** if not null, the utilities the iterations start from (which
+	 * are not modified) instead of zero, such as those of a
+	 * <tt>PolicySnapshot</tt> of an earlier solve; the closer they
+	 * are to the solution, the fewer iterations are needed.  NaN
+	 * entries, as left for unsolved states by
+	 * <tt>reachableOnly</tt>, start from zero, and infinite ones are
+	 * rejected **/
+	public double initialUtility[] = null;
+    }
     
     /**
      * The constructor for this class.  Computes the optimal policy
@@ -26,39 +124,298 @@ public class ValueIteration {
      * optimal utility in <tt>utility</tt>.
      */
     public ValueIteration(Mdp mdp, double discount) {
+    	this(mdp, discount, new Options());
+    }
+
+    /**
+     * Computes the optimal policy and utility as the two-argument
+     * constructor does, using the given <tt>options</tt>.  In
+     * <tt>JACOBI</tt> mode each state is backed up against the
+     * utilities of the previous sweep only, so the states of one sweep
+     * may be divided among <tt>options.numThreads</tt> threads; the
+     * resulting policy and utility are identical for any number of
+     * threads.  The other modes run on the calling thread.
+     */
+    public ValueIteration(Mdp mdp, double discount, Options options) {
 
-	// your code here
-    	int numStates = mdp.numStates, currentState;
+    	if (options.reachableOnly){
+    		// Solving the MDP restricted to the states reachable from the start state,
+    		// and mapping the answer back to all of the states
+    		ReachabilityReduction reduction = new ReachabilityReduction(mdp);
+    		solve(reduction.reduced, discount, options,
+    		      (options.initialUtility != null ? reduction.restrictUtility(options.initialUtility) : null));
+    		this.utility = reduction.liftUtility(this.utility);
+    		this.policy = reduction.liftPolicy(this.policy);
+    	}
+    	else
+    		solve(mdp, discount, options, options.initialUtility);
+    	if (options.keepQValues)
+    		this.qValues = new QTable(mdp, discount, this.utility, options.compactQValues);
+    }
+
+    /**
+     * This function computes the optimal policy and utility of the given MDP with the given options,
+     * starting from the given utilities (or from zero if they are null).
+     * @param mdp
+     * @param discount
+     * @param options
+     * @param initialUtility
+     */
+    private void solve (Mdp mdp, double discount, Options options, double initialUtility[]){
+    	int numStates = mdp.numStates;
+    	this.kernel = new BellmanKernel(mdp.transitions());
+    	this.mdp = mdp;
+    	this.discount = discount;
+    	this.listener = options.listener;
     	// Initializing the utility array
-    	this.utility = new double[numStates];
+    	if (initialUtility == null)
+    		this.utility = new double[numStates];
+    	else if (initialUtility.length != numStates)
+    		throw new IllegalArgumentException("initial utility has " + initialUtility.length
+    						   + " states, expected " + numStates);
+    	else {
+    		// States left unsolved by an earlier reachableOnly solve have a utility of NaN, which
+    		// would spread through the sweeps without ever holding up convergence, so they start from zero
+    		this.utility = initialUtility.clone();
+    		for (int currentState = 0; currentState < numStates; currentState++){
+    			if (Double.isNaN(this.utility[currentState]))
+    				this.utility[currentState] = 0;
+    			else if (Double.isInfinite(this.utility[currentState]))
+    				throw new IllegalArgumentException("initial utility of state " + currentState
+    								   + " is infinite");
+    		}
+    	}
     	// Initializing the policy array
     	this.policy = new int[numStates];
-    	double delta = Math.pow(10, -13) * (1 - discount) / discount, difference, maxDifference; //this.delta * (1 - discount) / discount
-    	double tempUtility[] = new double[numStates];
-    	while (true){
-    		// setting maximum distance = 0 
-    		maxDifference = 0;
-    		// Updating the current utility vector using the temporary utilities calculated
-    		for (currentState = 0; currentState < numStates; currentState++){
-    			this.utility[currentState] = tempUtility[currentState]; 
+    	double delta = Math.pow(10, -13) * (1 - discount) / discount; //this.delta * (1 - discount) / discount
+    	switch (options.mode) {
+    	case JACOBI:
+    		solveJacobi(delta, options.numThreads);
+    		break;
+    	case GAUSS_SEIDEL:
+    		solveGaussSeidel(delta);
+    		break;
+    	case PRIORITIZED_SWEEPING:
+    		solvePrioritized(options.priorityThreshold > 0 ? options.priorityThreshold : delta);
+    		break;
+    	default:
+    		throw new IllegalArgumentException("unknown value iteration mode " + options.mode);
+    	}
+    }
+
+    /**
+     * This function runs Jacobi sweeps until the maximum change in utility is smaller than delta.
+     * @param delta
+     * @param numThreads
+     */
+    private void solveJacobi (double delta, int numThreads){
+    	int numStates = this.mdp.numStates;
+    	double maxDifference, swap[];
+    	// The first sweep reads this copy of the starting utilities (see the swap below)
+    	this.tempUtility = this.utility.clone();
+    	ForkJoinPool pool = (numThreads > 1 ? new ForkJoinPool(numThreads) : null);
+    	int grain = Math.max(MIN_PARALLEL_STATES, numStates / (8 * numThreads));
+    	// the states are split into chunks of grain states, each of which records its largest change here
+    	double chunkMax[] = new double[(numStates + grain - 1) / grain];
+    	try {
+    		while (true){
+    			long start = (this.listener != null ? startSweep() : 0);
+    			// The utilities calculated by the previous sweep become the current utility vector,
+    			// and the old current vector is reused for the temporary utilities
+    			swap = this.utility;
+    			this.utility = this.tempUtility;
+    			this.tempUtility = swap;
+    			// Updating the temporary utility vector using the optimal action calculation methodology,
+    			// and finding the maximum change over all the states
+    			if (pool == null)
+    				maxDifference = sweep(0, numStates, this.tempUtility);
+    			else {
+    				pool.invoke(new SweepTask(0, chunkMax.length, grain, chunkMax));
+    				maxDifference = 0;
+    				for (int chunk = 0; chunk < chunkMax.length; chunk++)
+    					maxDifference = Math.max(maxDifference, chunkMax[chunk]);
+    			}
+    			this.iterations++;
+    			this.backups += numStates;
+    			if (this.listener != null)
+    				reportSweep(maxDifference, start);
+    			// Checking if the maximum change in the current iteration over all the nodes 
+    			// is smaller than the minimal required change. If, the change is very small,
+    			// the loop is broken (we have arrived at the optimal policy).
+    			if (delta > maxDifference){
+    				break;
+    			}
     		}
-    		// Updating the temporary utility vector using the optimal action calculation methodology
-	    	for (currentState = 0; currentState < numStates; currentState++){
-	    		// updating the maximum utility (over all the actions) for the current state
-	    		tempUtility[currentState] = mdp.reward[currentState] + (discount) * calculateOptimalAction (currentState, mdp);
-	    		// Calculating the change in the utility for the current state
-	    		difference = Math.abs(this.utility[currentState] - tempUtility[currentState]);
-	    		// Calculating if the change in the current state is the maximum change
-	    		if (difference > maxDifference){
-	    			maxDifference = difference;
-	    		}	    		
-	    	}
-	    	// Checking if the maximum change in the current iteration over all the nodes 
-	    	// is smaller than the minimal required change. If, the change is very small,
-	    	// the loop is broken (we have arrived at the optimal policy).
-	    	if (delta > maxDifference){
-	      		break;
-	    	}
+    	} finally {
+    		if (pool != null)
+    			pool.shutdown();
+    	}
+    	this.tempUtility = null;
+    }
+
+    /**
+     * This function runs in-place sweeps until the maximum change in utility is smaller than delta.
+     * @param delta
+     */
+    private void solveGaussSeidel (double delta){
+    	int numStates = this.mdp.numStates;
+    	double maxDifference;
+    	do {
+    		long start = (this.listener != null ? startSweep() : 0);
+    		maxDifference = sweep(0, numStates, this.utility);
+    		this.iterations++;
+    		this.backups += numStates;
+    		if (this.listener != null)
+    			reportSweep(maxDifference, start);
+    	} while (delta <= maxDifference);
+    }
+
+    /**
+     * This function runs prioritized sweeping.  The priority of a state is an upper bound on how far
+     * its utility is from its backed-up value: starting from zero utilities this is the absolute reward,
+     * and from other utilities it is worked out by backing every state up once.  Whenever a state
+     * changes by some amount, each predecessor's bound grows by that amount times the discount and
+     * the largest probability (over the actions) of moving to the changed state.  Backing a state up
+     * makes its bound zero.  When no bound exceeds the threshold, a final pass chooses the greedy
+     * action of every state.
+     * @param threshold
+     */
+    private void solvePrioritized (double threshold){
+    	int numStates = this.mdp.numStates, currentState, predecessor, k, oldAction, policyChanges = 0;
+    	double oldUtility, difference;
+    	long start = (this.listener != null ? System.nanoTime() : 0);
+    	PredecessorIndex predecessors = this.mdp.predecessors();
+    	StatePriorityQueue queue = new StatePriorityQueue(numStates);
+    	double bound[] = new double[numStates];
+    	boolean warm = false;
+    	for (currentState = 0; currentState < numStates && !warm; currentState++){
+    		warm = (this.utility[currentState] != 0);
+    	}
+    	for (currentState = 0; currentState < numStates; currentState++){
+    		bound[currentState] = (warm
+    				       ? Math.abs(this.mdp.reward[currentState] + (this.discount) * calculateOptimalAction (currentState, this.mdp)
+    						  - this.utility[currentState])
+    				       : Math.abs(this.mdp.reward[currentState]));
+    		if (bound[currentState] > threshold)
+    			queue.raise(currentState, bound[currentState]);
+    	}
+    	if (warm)
+    		this.backups += numStates;
+    	while (!queue.isEmpty()){
+    		currentState = queue.poll();
+    		bound[currentState] = 0;
+    		oldUtility = this.utility[currentState];
+    		oldAction = this.policy[currentState];
+    		this.utility[currentState] = this.mdp.reward[currentState] + (this.discount) * calculateOptimalAction (currentState, this.mdp);
+    		this.iterations++;
+    		this.backups++;
+    		if (this.listener != null){
+    			// Reporting once per numStates backups, the work of one sweep of the other modes
+    			if (this.policy[currentState] != oldAction)
+    				policyChanges++;
+    			if (this.iterations % numStates == 0 || queue.isEmpty()){
+    				long now = System.nanoTime();
+    				this.listener.iteration(SolverListener.VALUE_ITERATION, this.iterations,
+    							(queue.isEmpty() ? 0 : queue.maxPriority()), policyChanges, now - start);
+    				policyChanges = 0;
+    				start = now;
+    			}
+    		}
+    		difference = Math.abs(this.utility[currentState] - oldUtility);
+    		if (difference == 0)
+    			continue;
+    		// Raising the bounds of all the states that can move to the current state
+    		for (k = predecessors.offset[currentState]; k < predecessors.end[currentState]; k++){
+    			predecessor = predecessors.state[k];
+    			bound[predecessor] += this.discount * predecessors.maxProb[k] * difference;
+    			if (bound[predecessor] > threshold)
+    				queue.raise(predecessor, bound[predecessor]);
+    		}
+    	}
+    	// Choosing the greedy action of every state for the final utilities
+    	for (currentState = 0; currentState < numStates; currentState++){
+    		calculateOptimalAction (currentState, this.mdp);
+    	}
+    	this.backups += numStates;
+    }
+
+    /**
+     * This function saves the policy before a sweep so that <tt>reportSweep</tt> can count the states
+     * whose action the sweep changes, and returns the time at which the sweep starts.
+     * @return start
+     */
+    private long startSweep (){
+    	if (this.previousPolicy == null)
+    		this.previousPolicy = new int[this.mdp.numStates];
+    	System.arraycopy(this.policy, 0, this.previousPolicy, 0, this.mdp.numStates);
+    	return System.nanoTime();
+    }
+
+    /**
+     * This function tells the listener about the sweep that has just finished.
+     * @param maxDifference
+     * @param start
+     */
+    private void reportSweep (double maxDifference, long start){
+    	long nanos = System.nanoTime() - start;
+    	int policyChanges = 0;
+    	for (int currentState = 0; currentState < this.mdp.numStates; currentState++){
+    		if (this.policy[currentState] != this.previousPolicy[currentState])
+    			policyChanges++;
+    	}
+    	this.listener.iteration(SolverListener.VALUE_ITERATION, this.iterations, maxDifference, policyChanges, nanos);
+    }
+
+    /**
+     * This function backs up the states <tt>from</tt> up to (but not including) <tt>to</tt> into the
+     * given utility vector, and returns the maximum change in utility over those states.  Passing
+     * the current utility vector updates the states in place.
+     * @param from
+     * @param to
+     * @param into
+     * @return maxDifference
+     */
+    private double sweep (int from, int to, double into[]){
+    	double oldUtility, difference, maxDifference = 0;
+    	for (int currentState = from; currentState < to; currentState++){
+    		oldUtility = this.utility[currentState];
+    		// updating the maximum utility (over all the actions) for the current state
+    		into[currentState] = this.mdp.reward[currentState] + (this.discount) * calculateOptimalAction (currentState, this.mdp);
+    		// Calculating the change in the utility for the current state
+    		difference = Math.abs(oldUtility - into[currentState]);
+    		// Calculating if the change in the current state is the maximum change
+    		if (difference > maxDifference){
+    			maxDifference = difference;
+    		}
+    	}
+    	return maxDifference;
+    }
+
+    /**
+     * This task runs <tt>sweep</tt> over the chunks <tt>from</tt> up to (but not including) <tt>to</tt>
+     * of <tt>grain</tt> states each, splitting the range of chunks in half until it is a single chunk,
+     * and stores the maximum change over each chunk in <tt>chunkMax</tt>.
+     */
+    private class SweepTask extends RecursiveAction {
+    	private static final long serialVersionUID = 1L;
+    	private int from, to, grain;
+    	private double chunkMax[];
+
+    	private SweepTask (int from, int to, int grain, double chunkMax[]){
+    		this.from = from;
+    		this.to = to;
+    		this.grain = grain;
+    		this.chunkMax = chunkMax;
+    	}
+
+    	protected void compute (){
+    		if (to - from == 1){
+    			chunkMax[from] = sweep(from * grain, (int) Math.min(mdp.numStates, (long) (from + 1) * grain), tempUtility);
+    			return;
+    		}
+    		int middle = (from + to) >>> 1;
+    		invokeAll(new SweepTask(from, middle, grain, chunkMax),
+    			  new SweepTask(middle, to, grain, chunkMax));
     	}
     }
     
@@ -70,32 +427,8 @@ public class ValueIteration {
      * @return maxUtility
      */
     private double calculateOptimalAction (int state, Mdp mdp){
-    	// utilitySum --> temporary variable for calculating the total utility for each action from the current state
-    	// maxUtility --> maximum utility over all the actions for the current state 
-    	double utilitySum, maxUtility = Double.NEGATIVE_INFINITY;
-    	// optimalAction --> stores the optimal action for the current state  
-    	int optimalAction = -1;
-    	int numActions = mdp.numActions, numReachableStates, destinationState, destinationStateCount;
-    	// Calculating the expected utility over all the actions 
-    	for (int currentAction = 0; currentAction < numActions; currentAction++){
-    		// Calculating the number of reachable states for each action 
-    		numReachableStates = mdp.nextState[state][currentAction].length;
-    		// initializing the utility sum to 0
-    		utilitySum = 0.0;
-    		// iterating over all the destination states (reachable from the current state for all the allowable set of actions) 
-    		for (destinationStateCount = 0; destinationStateCount < numReachableStates; destinationStateCount++){    			
-    			destinationState = mdp.nextState[state][currentAction][destinationStateCount];
-    			utilitySum += (mdp.transProb[state][currentAction][destinationStateCount]) *
-    					(this.utility[destinationState]);
-    		}
-    		if (utilitySum > maxUtility){
-    			maxUtility = utilitySum;
-    			optimalAction = currentAction;
-    		}
-    	}
-    	assert (optimalAction != -1);
-    	this.policy[state] = optimalAction;    	
-    	return maxUtility;
+    	// the kernel takes the maximum (over all the actions) of the expected utility of the destination states
+    	return this.kernel.backup(state, this.utility, this.policy);
     }
     
 }